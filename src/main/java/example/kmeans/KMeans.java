@@ -1,9 +1,7 @@
 package example.kmeans;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -14,6 +12,8 @@ import java.util.Random;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ibis.cashmere.constellation.BinaryFileReader;
+import ibis.cashmere.constellation.Buffer;
 import ibis.cashmere.constellation.Kernel;
 import ibis.cashmere.constellation.KernelLaunch;
 import ibis.cashmere.constellation.Cashmere;
@@ -64,68 +64,30 @@ public class KMeans extends Activity {
     // Read initial "centers" file.
     private static final float[] readCenters(String dir) throws Exception {
         File d = new File(dir, "centers");
-        DataInputStream is = new DataInputStream(
-                new BufferedInputStream(new FileInputStream(d)));
-        nFeatures = is.readInt();
-        int len = is.readInt();
-        float[] result = new float[len];
-        for (int i = 0; i < len; i++) {
-            result[i] = is.readFloat();
+        try (BinaryFileReader reader = new BinaryFileReader(d)) {
+            nFeatures = reader.readInt();
+            int len = reader.readInt();
+            return reader.readFloats(len);
         }
-        is.close();
-        return result;
     }
 
-    // Read "points" directory.
-    private static final float[][] readPoints(String dir, int numTasks)
+    // Read "points" directory, transposing the points of each task into
+    // a structure of arrays. The Buffers the points are read into are kept
+    // and handed to the device as they are.
+    private static final Buffer[] readPoints(String dir, int numTasks)
         throws Exception {
         File d = new File(dir, "points");
-        DataInputStream is = null;
-        int len = 0;
-        float[] result = null;
-        try {
-            is = new DataInputStream(
-                    new BufferedInputStream(new FileInputStream(d)));
-            int n = is.readInt();
+        Buffer[] pts = new Buffer[numTasks];
+        try (BinaryFileReader reader = new BinaryFileReader(d)) {
+            int n = reader.readInt();
             if (n != nFeatures) {
                 throw new Error("Wrong number of features");
             }
-            len = is.readInt();
-            result = new float[len];
-            for (int i = 0; i < len; i++) {
-                result[i] = is.readFloat();
-            }
-        } finally {
-            if (is != null) {
-                is.close();
-            }
-        }
-
-        int nPoints = len / nFeatures;
-        int pointsPerTask = nPoints / numTasks;
-        int p1 = nPoints - numTasks * pointsPerTask;
-
-        float[][] pts = new float[numTasks][];
-        int pIndex = 0;
-        for (int i = 0; i < p1; i++) {
-            pts[i] = new float[(pointsPerTask + 1) * nFeatures];
-            for (int j = 0; j <= pointsPerTask; j++) {
-                for (int k = 0; k < nFeatures; k++) {
-                    pts[i][k * pointsPerTask + j] = result[pIndex * nFeatures
-                        + k];
-                }
-                pIndex++;
-            }
-        }
-        for (int i = p1; i < numTasks; i++) {
-            pts[i] = new float[pointsPerTask * nFeatures];
-            for (int j = 0; j < pointsPerTask; j++) {
-                for (int k = 0; k < nFeatures; k++) {
-                    pts[i][k * pointsPerTask + j] = result[pIndex * nFeatures
-                        + k];
-                }
-                pIndex++;
-            }
+            int len = reader.readInt();
+            reader.readRecords(len / nFeatures, nFeatures, numTasks,
+                    BinaryFileReader.Layout.SOA, (i, nPoints, chunk) -> {
+                        pts[i] = chunk;
+                    });
         }
         return pts;
     }
@@ -253,7 +215,7 @@ public class KMeans extends Activity {
     }
 
     private int[] kMeansClusterCPU(Constellation cons, int jobNo,
-            float[] centers, float[] pts, int nFeatures, int jobSize) {
+            float[] centers, FloatBuffer pts, int nFeatures, int jobSize) {
         Timer timer = Cashmere.getTimer("java", cons.identifier().toString(),
                 "CPU compute distances");
         int event = timer.start();
@@ -282,11 +244,12 @@ public class KMeans extends Activity {
     }
 
     private int[] kMeansClusterGPU(Constellation cons, int jobNo,
-            float[] centers, float[] pts, int nFeatures, int jobSize) {
+            float[] centers, Buffer pts, int nFeatures, int jobSize) {
         int[] pointsCluster = new int[jobSize];
+        KernelLaunch kernelLaunch = null;
         try {
             Kernel kernel = Cashmere.getKernel("kmeans");
-            KernelLaunch kernelLaunch = kernel.createLaunch();
+            kernelLaunch = kernel.createLaunch();
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Executing job " + jobNo + " of size " + jobSize);
@@ -301,8 +264,11 @@ public class KMeans extends Activity {
             return pointsCluster;
         } catch (CashmereNotAvailable e) {
             logger.warn("fallback to CPU", e);
-            return kMeansClusterCPU(cons, jobNo, centers, pts, nFeatures,
-                    jobSize);
+            if (kernelLaunch != null) {
+                kernelLaunch.cancel();
+            }
+            return kMeansClusterCPU(cons, jobNo, centers, pts.asFloatBuffer(),
+                    nFeatures, jobSize);
         } catch (RuntimeException e) {
             e.printStackTrace(System.out);
             throw e;
@@ -320,11 +286,12 @@ public class KMeans extends Activity {
         int nCenters = centers.length / nFeatures;
         int[] counts = new int[nCenters];
         KMeansResult result = new KMeansResult(newCenters, counts);
-        float[] pts = points.getPoints(jobNo);
-        int jobSize = pts.length / nFeatures;
+        Buffer buffer = points.getPoints(jobNo);
+        FloatBuffer pts = buffer.asFloatBuffer();
+        int jobSize = pts.capacity() / nFeatures;
 
         int[] pointsCluster = gpu
-            ? kMeansClusterGPU(cons, jobNo, centers, pts, nFeatures,
+            ? kMeansClusterGPU(cons, jobNo, centers, buffer, nFeatures,
                     jobSize)
             : kMeansClusterCPU(cons, jobNo, centers, pts, nFeatures,
                     jobSize);
@@ -336,8 +303,8 @@ public class KMeans extends Activity {
         for (int pIndex = 0; pIndex < jobSize; pIndex++) {
             int cluster = pointsCluster[pIndex];
             for (int i = 0; i < nFeatures; i++) {
-                newCenters[cluster * nFeatures + i] += pts[i * jobSize
-                    + pIndex];
+                newCenters[cluster * nFeatures + i] += pts.get(i * jobSize
+                    + pIndex);
             }
             counts[cluster]++;
         }
@@ -348,11 +315,11 @@ public class KMeans extends Activity {
     }
 
     /***** SUPPORT METHODS *****/
-    private static final float eucledianDistanceSq(float[] pts, int i1,
+    private static final float eucledianDistanceSq(FloatBuffer pts, int i1,
             float[] set2, int i2, int nFeatures, int jobSize) {
         float sum = 0;
         for (int i = 0; i < nFeatures; i++) {
-            float diff = set2[i2 * nFeatures + i] - pts[i * jobSize + i1];
+            float diff = set2[i2 * nFeatures + i] - pts.get(i * jobSize + i1);
             sum += (diff * diff);
         }
         return sum;
@@ -1,6 +1,7 @@
 package example.kmeans;
 
 import ibis.cashmere.constellation.Argument;
+import ibis.cashmere.constellation.Buffer;
 import ibis.cashmere.constellation.KernelLaunch;
 import ibis.cashmere.constellation.CashmereNotAvailable;
 
@@ -16,6 +17,21 @@ class MCL {
     }
 
 
+    static void launchKmeans_kernelKernel(KernelLaunch kl, int npoints, int 
+            nclusters, int nfeatures, Buffer points, float[] clusters, int[] 
+            pointsCluster) throws CashmereNotAvailable {
+        
+        kl.setArgument(npoints, Argument.Direction.IN);
+        kl.setArgument(nclusters, Argument.Direction.IN);
+        kl.setArgument(nfeatures, Argument.Direction.IN);
+        kl.setArgument(points, Argument.Direction.IN);
+        kl.setArgument(clusters, Argument.Direction.IN);
+        kl.setArgument(pointsCluster, Argument.Direction.OUT);
+
+        launch(kl, npoints);
+    }
+
+
     static void launchKmeans_kernelKernel(KernelLaunch kl, int npoints, int 
             nclusters, int nfeatures, float[] points, boolean copypoints, 
             float[] clusters, boolean copyclusters, int[] pointsCluster, 
@@ -43,8 +59,12 @@ class MCL {
             kl.setArgumentNoCopy(pointsCluster, Argument.Direction.OUT);
         }
 
+        launch(kl, npoints);
+    }
 
 
+    private static void launch(KernelLaunch kl, int npoints)
+            throws CashmereNotAvailable {
         if (kl.getDeviceName().equals("xeon_phi")) {
             kl.launch(16 * (npoints / 16), 1 * 1, 1 * 1, 16, 1, 1);
         }
@@ -1,18 +1,20 @@
 package example.kmeans;
 
+import ibis.cashmere.constellation.Buffer;
+
 public class Points {
 
     private static final long serialVersionUID = 1L;
 
-    private float[][] points;
+    private Buffer[] points;
     private int nFeatures;
     private boolean initialized = false;
 
-    public float[] getPoints(int i) {
+    public Buffer getPoints(int i) {
 	return points[i];
     }
 
-    public void initializePoints(float[][] points, int nFeatures) {
+    public void initializePoints(Buffer[] points, int nFeatures) {
 	this.points = points;
 	this.nFeatures = nFeatures;
 	initialized = true;
@@ -24,7 +26,7 @@ public class Points {
     public int nPoints() {
 	int count = 0;
 	for (int i = 0; i < points.length; i++) {
-	    count += points[i].length;
+	    count += points[i].asFloatBuffer().capacity();
 	}
 	return count / nFeatures;
     }
@@ -36,10 +38,12 @@ public class Points {
     public void generatePoints(int npoints, int nfeatures, int nTasks) {
 	KMeans.logger.debug("Generating points");
 	this.nFeatures = nfeatures;
-	points = new float[nTasks][];
+	points = new Buffer[nTasks];
 	int sz = (npoints + nTasks - 1) / (nTasks);
 	for (int i = 0; i < points.length; i++) {
-	    points[i] = KMeans.generateRandom(sz * nFeatures, 903L + i);
+	    float[] pts = KMeans.generateRandom(sz * nFeatures, 903L + i);
+	    points[i] = new Buffer(pts.length * 4);
+	    points[i].asFloatBuffer().put(pts);
 	}
 	KMeans.logger.debug("Generated points");
 	initialized = true;
@@ -168,14 +168,18 @@ class Leaf implements java.io.Serializable {
     }
 
     void multiplyMCL(Leaf a, Leaf b) {
+        KernelLaunch kernelLaunch = null;
         try {
             Kernel kernel = Cashmere.getKernel("matmulKernel");
-            KernelLaunch kernelLaunch = kernel.createLaunch();
+            kernelLaunch = kernel.createLaunch();
             MCL.launchMatmulKernel(kernelLaunch, size, size, size, bvalue,
                     a.value, b.value);
         } catch (CashmereNotAvailable e) {
             System.err.println("falling back to CPU");
             System.err.println(e.getMessage());
+            if (kernelLaunch != null) {
+                kernelLaunch.cancel();
+            }
             multiplyStride2(a, b);
         }
     }
@@ -0,0 +1,72 @@
+package example.vectoradd;
+
+import ibis.cashmere.constellation.Argument;
+import ibis.cashmere.constellation.Cashmere;
+import ibis.cashmere.constellation.Device;
+import ibis.cashmere.constellation.Kernel;
+import ibis.constellation.Constellation;
+
+/**
+ * Measures the overhead of a kernel launch by launching the vectoradd kernel on a tiny vector many times. The vectors are
+ * copied to the device once, so that a launch only sets its arguments, enqueues the kernel, and waits for it.
+ *
+ * Run it once with the default cl_kernel pool and once with <code>-Dcashmere.kernelPoolSize=0</code>, which creates and
+ * releases a cl_kernel for every launch, to see what the pool saves per launch.
+ */
+class LaunchOverhead {
+
+    public static void main(String[] args) throws Exception {
+        int n = 1024;
+        int nLaunches = 100000;
+        int nWarmup = 1000;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n")) {
+                i++;
+                n = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-launches")) {
+                i++;
+                nLaunches = Integer.parseInt(args[i]);
+            } else {
+                throw new Error("Usage: java LaunchOverhead [ -n <num> ] [ -launches <num> ]");
+            }
+        }
+
+        float[] a = new float[n];
+        float[] b = new float[n];
+        float[] c = new float[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = i;
+        }
+
+        Cashmere.initialize(VectorAdd.getExecutors(System.getProperties()));
+        Constellation constellation = Cashmere.getConstellation();
+        constellation.activate();
+
+        if (constellation.isMaster()) {
+            Kernel kernel = Cashmere.getKernel("vectoraddKernel");
+            Device device = kernel.getDevice();
+            device.copy(a, Argument.Direction.IN);
+            device.copy(b, Argument.Direction.IN);
+            device.copy(c, Argument.Direction.OUT);
+
+            for (int i = 0; i < nWarmup; i++) {
+                MCL.launchVectoraddKernel(kernel.createLaunch(), n, c, false, a, false, b, false);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < nLaunches; i++) {
+                MCL.launchVectoraddKernel(kernel.createLaunch(), n, c, false, a, false, b, false);
+            }
+            long time = System.nanoTime() - start;
+
+            System.out.println("LaunchOverhead on " + device + ", n = " + n + ": " + nLaunches + " launches, "
+                    + (time / 1000.0 / nLaunches) + " us per launch");
+
+            device.clean(a);
+            device.clean(b);
+            device.clean(c);
+        }
+        Cashmere.done();
+    }
+}
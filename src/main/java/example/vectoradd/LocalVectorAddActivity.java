@@ -78,9 +78,10 @@ public class LocalVectorAddActivity extends ParentActivity<VectorAddResult> {
 
     private float[] addVectorMC(Constellation cons, float[] a, float[] b) {
         float[] sum = new float[a.length];
+        KernelLaunch kernelLaunch = null;
         try {
             Kernel kernel = Cashmere.getKernel("vectoraddKernel");
-            KernelLaunch kernelLaunch = kernel.createLaunch();
+            kernelLaunch = kernel.createLaunch();
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Executing vectoradd of size " + a.length);
@@ -93,6 +94,9 @@ public class LocalVectorAddActivity extends ParentActivity<VectorAddResult> {
             return sum;
         } catch (CashmereNotAvailable e) {
             logger.warn("fallback to CPU", e);
+            if (kernelLaunch != null) {
+                kernelLaunch.cancel();
+            }
             return addVectorCPU(cons, a, b);
         } catch (RuntimeException | Error e) {
             e.printStackTrace(System.out);
@@ -108,6 +108,10 @@ public class Argument {
         return pointer;
     }
 
+    long getSize() {
+        return size;
+    }
+
     public void createBuffer(Device device, long size, Pointer hostPtr) {
 
         pointer = device.createBuffer(direction, size);
@@ -130,8 +134,14 @@ public class Argument {
     public DeviceEvent writeBufferNoCreateBuffer(Device device, CommandStream q, final DeviceEvent[] waitEvents, long size,
             Pointer hostPtr) {
 
-        boolean async = this instanceof BufferArgument && ((BufferArgument) this).isDirect();
-        return device.writeNoCreateBuffer(q, waitEvents, async, size, hostPtr, pointer);
+        return writeBufferNoCreateBuffer(device, q, waitEvents, size, hostPtr, false);
+    }
+
+    public DeviceEvent writeBufferNoCreateBuffer(Device device, CommandStream q, final DeviceEvent[] waitEvents, long size,
+            Pointer hostPtr, boolean async) {
+
+        boolean direct = this instanceof BufferArgument && ((BufferArgument) this).isDirect();
+        return device.writeNoCreateBuffer(q, waitEvents, async || direct, size, hostPtr, pointer);
     }
 
     boolean readScheduled() {
@@ -143,9 +153,14 @@ public class Argument {
      */
 
     protected DeviceEvent writeBuffer(Device device, CommandStream q, long size, Pointer hostPtr) {
+        return writeBuffer(device, q, size, hostPtr, false);
+    }
+
+    // an asynchronous write returns an event that completes when the data is on the device
+    protected DeviceEvent writeBuffer(Device device, CommandStream q, long size, Pointer hostPtr, boolean async) {
         createBuffer(device, size, hostPtr);
 
-        return writeBufferNoCreateBuffer(device, q, null, size, hostPtr);
+        return writeBufferNoCreateBuffer(device, q, null, size, hostPtr, async);
     }
 
     protected DeviceEvent readBuffer(Device device, CommandStream q, ArrayList<DeviceEvent> waitEvents, long size,
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.util.TypedProperties;
+
+/*
+ * Chooses the block size of launches of a kernel on a device, see KernelLaunch.launchTuned. Launches are grouped by kernel
+ * and problem size, where problem sizes are bucketed by their power of two. In autotuning mode (cashmere.autotune), the
+ * first launches of a group try each candidate block size for cashmere.autotune.samples launches, after which the fastest
+ * is chosen. The choices are stored on disk in cashmere.autotune.dir, so that later runs use them without exploring.
+ */
+class Autotuner {
+
+    private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.Device/autotune");
+
+    private final Device device;
+    private final boolean explore;
+    private final int nrSamples;
+    private final File choicesFile;
+
+    // the chosen block sizes per group, as stored on disk
+    private final Properties choices = new Properties();
+    // the groups that are being explored
+    private final Map<String, Exploration> explorations = new HashMap<String, Exploration>();
+
+    /*
+     * The block size for one launch. A launch that explores a candidate reports its execution time with done, or a negative
+     * time if it could not be timed or was cleaned before its kernel executed.
+     */
+    class Trial {
+        private final int[] block;
+        private final Exploration exploration;
+        private final int candidate;
+
+        Trial(int[] block, Exploration exploration, int candidate) {
+            this.block = block;
+            this.exploration = exploration;
+            this.candidate = candidate;
+        }
+
+        int[] getBlock() {
+            return block;
+        }
+
+        void done(double time) {
+            if (exploration != null) {
+                report(exploration, candidate, time);
+            }
+        }
+    }
+
+    private static class Exploration {
+        private final String group;
+        private final List<int[]> candidates;
+        private final double[] totalTime;
+        private final int[] nrStarted;
+        private final int[] nrDone;
+
+        Exploration(String group, List<int[]> candidates) {
+            this.group = group;
+            this.candidates = candidates;
+            this.totalTime = new double[candidates.size()];
+            this.nrStarted = new int[candidates.size()];
+            this.nrDone = new int[candidates.size()];
+        }
+    }
+
+    Autotuner(Device device, TypedProperties props) {
+        this.device = device;
+        this.explore = props.getBooleanProperty("cashmere.autotune", false);
+        this.nrSamples = props.getIntProperty("cashmere.autotune.samples", 3);
+        String dir = props.getProperty("cashmere.autotune.dir", System.getProperty("user.home") + File.separator + ".cashmere");
+        this.choicesFile = new File(dir, "autotune-" + device.getNickName() + ".properties");
+        load();
+    }
+
+    synchronized Trial select(String kernel, int gridX, int gridY, int gridZ, int[][] candidates) {
+        List<int[]> valid = new ArrayList<int[]>();
+        for (int[] block : candidates) {
+            if (block.length != 3) {
+                throw new Error("A candidate block size should have three dimensions");
+            }
+            if (block[0] > 0 && block[1] > 0 && block[2] > 0 && gridX % block[0] == 0 && gridY % block[1] == 0
+                    && gridZ % block[2] == 0) {
+                valid.add(block);
+            }
+        }
+        if (valid.isEmpty()) {
+            throw new Error("None of the candidate block sizes divides the grid " + gridX + "x" + gridY + "x" + gridZ);
+        }
+
+        String group = getGroup(kernel, (long) gridX * gridY * gridZ);
+        String choice = choices.getProperty(group);
+        if (choice != null) {
+            for (int[] block : valid) {
+                if (choice.equals(toString(block))) {
+                    return new Trial(block, null, -1);
+                }
+            }
+        }
+        if (!explore || valid.size() == 1) {
+            return new Trial(valid.get(0), null, -1);
+        }
+
+        Exploration exploration = explorations.get(group);
+        if (exploration == null) {
+            exploration = new Exploration(group, valid);
+            explorations.put(group, exploration);
+        }
+        for (int i = 0; i < exploration.candidates.size(); i++) {
+            if (exploration.nrStarted[i] < nrSamples) {
+                exploration.nrStarted[i]++;
+                return new Trial(exploration.candidates.get(i), exploration, i);
+            }
+        }
+        // all samples are running, wait for their results with the first candidate
+        return new Trial(exploration.candidates.get(0), null, -1);
+    }
+
+    // the chosen block size for a kernel and problem size, or null if there is none
+    synchronized int[] getChoice(String kernel, long problemSize) {
+        String choice = choices.getProperty(getGroup(kernel, problemSize));
+        if (choice == null) {
+            return null;
+        }
+        String[] dims = choice.split("x");
+        return new int[] { Integer.parseInt(dims[0]), Integer.parseInt(dims[1]), Integer.parseInt(dims[2]) };
+    }
+
+    private synchronized void report(Exploration exploration, int candidate, double time) {
+        if (time < 0) {
+            // the device could not time the launch, try again
+            exploration.nrStarted[candidate]--;
+            return;
+        }
+        exploration.totalTime[candidate] += time;
+        exploration.nrDone[candidate]++;
+
+        int best = -1;
+        for (int i = 0; i < exploration.candidates.size(); i++) {
+            if (exploration.nrDone[i] < nrSamples) {
+                return;
+            }
+            if (best < 0 || exploration.totalTime[i] < exploration.totalTime[best]) {
+                best = i;
+            }
+        }
+
+        int[] block = exploration.candidates.get(best);
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("%s: chose block size %s for %s, %.3f ms per launch", device, toString(block),
+                    exploration.group, exploration.totalTime[best] / nrSamples * 1e3));
+        }
+        choices.setProperty(exploration.group, toString(block));
+        explorations.remove(exploration.group);
+        save();
+    }
+
+    private static String getGroup(String kernel, long problemSize) {
+        int bucket = 63 - Long.numberOfLeadingZeros(Math.max(problemSize, 1));
+        return (kernel == null ? "__DEFAULT__" : kernel) + "." + bucket;
+    }
+
+    private static String toString(int[] block) {
+        return block[0] + "x" + block[1] + "x" + block[2];
+    }
+
+    private void load() {
+        if (!choicesFile.exists()) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(choicesFile)) {
+            choices.load(in);
+            logger.info("{}: loaded block sizes from {}", device, choicesFile);
+        } catch (IOException e) {
+            logger.warn("Could not read block sizes " + choicesFile, e);
+        }
+    }
+
+    private void save() {
+        choicesFile.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(choicesFile)) {
+            choices.store(out, "Cashmere block sizes for " + device.getNickName());
+        } catch (IOException e) {
+            logger.warn("Could not write block sizes " + choicesFile, e);
+        }
+    }
+}
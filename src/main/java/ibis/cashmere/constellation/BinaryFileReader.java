@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads binary files of <code>int</code> and <code>float</code> values in large chunks through a {@link FileChannel}. Records of
+ * floats can be read into pooled direct {@link Buffer}s from the {@link BufferCache}, optionally transformed from an array of
+ * structures into a structure of arrays, and handed to a {@link ChunkHandler} as soon as they are read. A handler can for
+ * instance upload a chunk with {@link Device#prefetch(Buffer, Argument.Direction)} while the next chunk is being read.
+ * <p>
+ * The values in the file are expected in big-endian order, the format written by {@link java.io.DataOutputStream}, unless
+ * {@link #setOrder(ByteOrder)} specifies otherwise.
+ */
+public class BinaryFileReader implements Closeable {
+
+    /**
+     * The <code>Layout</code> enumeration describes the layout of the records in a chunk.
+     */
+    public static enum Layout {
+        /**
+         * The records are stored one after the other, as in the file (array of structures).
+         */
+        AOS,
+        /**
+         * The first fields of all records are stored first, then the second fields, etc. (structure of arrays).
+         */
+        SOA,
+    };
+
+    /**
+     * A <code>ChunkHandler</code> receives the chunks of a file.
+     */
+    public static interface ChunkHandler {
+        /**
+         * Handle a chunk. The handler becomes the owner of <code>chunk</code> and may return it to the pool with
+         * {@link BufferCache#makeAvailableBuffer(Buffer)} when it is done with it.
+         *
+         * @param index
+         *            the index of the chunk
+         * @param nrRecords
+         *            the number of records in the chunk
+         * @param chunk
+         *            the <code>Buffer</code> containing the records of the chunk
+         * @exception IOException
+         *                if the handler fails
+         */
+        void handle(int index, int nrRecords, Buffer chunk) throws IOException;
+    }
+
+    // the largest region of the file that is mapped at once, a mapping cannot exceed Integer.MAX_VALUE bytes
+    private static final int MAX_MAP_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private ByteOrder order = ByteOrder.BIG_ENDIAN;
+    private long position = 0;
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param file
+     *            the file to read
+     * @exception IOException
+     *                if the file cannot be opened
+     */
+    public BinaryFileReader(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Sets the byte order of the values in the file.
+     *
+     * @param order
+     *            the byte order
+     */
+    public void setOrder(ByteOrder order) {
+        this.order = order;
+    }
+
+    /**
+     * Reads an <code>int</code>.
+     *
+     * @return the value
+     * @exception IOException
+     *                if an I/O error occurs or the end of the file is reached
+     */
+    public int readInt() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(Platform.INT_SIZE).order(order);
+        readFully(b);
+        return b.getInt(0);
+    }
+
+    /**
+     * Reads <code>n</code> floats into a new array.
+     *
+     * @param n
+     *            the number of floats
+     * @return the floats
+     * @exception IOException
+     *                if an I/O error occurs or the end of the file is reached
+     */
+    public float[] readFloats(int n) throws IOException {
+        float[] result = new float[n];
+        for (int done = 0; done < n;) {
+            int m = Math.min(n - done, MAX_MAP_SIZE / Platform.FLOAT_SIZE);
+            map((long) m * Platform.FLOAT_SIZE).get(result, done, m);
+            done += m;
+        }
+        return result;
+    }
+
+    /**
+     * Reads <code>nrRecords</code> records of <code>recordLength</code> floats in <code>nrChunks</code> chunks. The records are
+     * divided as evenly as possible over the chunks, where the first chunks get one more record if the division is not exact.
+     * Each chunk is read into a direct <code>Buffer</code> from the {@link BufferCache}, in native byte order, and in the
+     * specified layout.
+     *
+     * @param nrRecords
+     *            the number of records to read
+     * @param recordLength
+     *            the number of floats in a record
+     * @param nrChunks
+     *            the number of chunks
+     * @param layout
+     *            the layout of the records in a chunk
+     * @param handler
+     *            the handler that receives the chunks
+     * @exception IOException
+     *                if an I/O error occurs, the end of the file is reached, or the handler fails
+     */
+    public void readRecords(int nrRecords, int recordLength, int nrChunks, Layout layout, ChunkHandler handler)
+            throws IOException {
+        int recordsPerChunk = nrRecords / nrChunks;
+        int remainder = nrRecords - nrChunks * recordsPerChunk;
+
+        for (int i = 0; i < nrChunks; i++) {
+            int n = i < remainder ? recordsPerChunk + 1 : recordsPerChunk;
+            long size = (long) n * recordLength * Platform.FLOAT_SIZE;
+            if (size > Integer.MAX_VALUE) {
+                throw new Error("A chunk of " + n + " records of " + recordLength + " floats does not fit in a Buffer");
+            }
+            Buffer chunk = BufferCache.getBuffer((int) size, false);
+            FloatBuffer to = chunk.getByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+            // map the chunk in regions of whole records
+            int recordsPerRegion = Math.max(1, MAX_MAP_SIZE / (recordLength * Platform.FLOAT_SIZE));
+            for (int start = 0; start < n; start += recordsPerRegion) {
+                int m = Math.min(n - start, recordsPerRegion);
+                FloatBuffer from = map((long) m * recordLength * Platform.FLOAT_SIZE);
+                if (layout == Layout.AOS) {
+                    to.put(from);
+                } else {
+                    for (int j = 0; j < m; j++) {
+                        for (int k = 0; k < recordLength; k++) {
+                            to.put(k * n + start + j, from.get(j * recordLength + k));
+                        }
+                    }
+                }
+            }
+            handler.handle(i, n, chunk);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /*
+     * Private methods
+     */
+
+    // map the next size bytes of the file
+    private FloatBuffer map(long size) throws IOException {
+        if (position + size > channel.size()) {
+            throw new EOFException("Reading " + size + " bytes at " + position + " beyond the end of the file");
+        }
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        position += size;
+        return mapped.order(order).asFloatBuffer();
+    }
+
+    private void readFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            int n = channel.read(b, position);
+            if (n < 0) {
+                throw new EOFException("Reading beyond the end of the file");
+            }
+            position += n;
+        }
+    }
+}
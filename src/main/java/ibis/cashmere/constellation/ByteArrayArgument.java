@@ -24,6 +24,11 @@ public class ByteArrayArgument extends ArrayArgument {
 
     public ByteArrayArgument(Device device, CommandStream writeQueue, CommandStream readQueue,
             ArrayList<DeviceEvent> writeBufferEvents, byte[] bs, Direction d) {
+        this(device, writeQueue, readQueue, writeBufferEvents, bs, d, false);
+    }
+
+    public ByteArrayArgument(Device device, CommandStream writeQueue, CommandStream readQueue,
+            ArrayList<DeviceEvent> writeBufferEvents, byte[] bs, Direction d, boolean async) {
         super(device, d, readQueue);
 
         this.bs = bs;
@@ -31,8 +36,10 @@ public class ByteArrayArgument extends ArrayArgument {
         Pointer bsPointer = Cashmere.cashmere.getPlatform().toPointer(bs);
 
         if (d == Direction.IN || d == Direction.INOUT) {
-            DeviceEvent event = writeBuffer(device, writeQueue, bs.length, bsPointer);
-            assert(event == null);
+            DeviceEvent event = writeBuffer(device, writeQueue, bs.length, bsPointer, async);
+            if (event != null) {
+                writeBufferEvents.add(event);
+            }
         } else {
             createBuffer(device, bs.length, bsPointer);
         }
@@ -16,33 +16,53 @@
 
 package ibis.cashmere.constellation;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ibis.constellation.AbstractContext;
 import ibis.constellation.Activity;
 import ibis.constellation.ActivityIdentifier;
 import ibis.constellation.Constellation;
 import ibis.constellation.ConstellationConfiguration;
 import ibis.constellation.ConstellationCreationException;
 import ibis.constellation.ConstellationFactory;
+import ibis.constellation.Context;
 import ibis.constellation.NoSuitableExecutorException;
+import ibis.constellation.StealPool;
+import ibis.constellation.StealStrategy;
 import ibis.constellation.Timer;
 import ibis.util.IPUtils;
 import ibis.util.TypedProperties;
@@ -66,6 +86,9 @@ public class Cashmere {
 
     private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.Cashmere");
 
+    // the index of kernel sources that the build generates, see the kernelIndex task in build.gradle
+    static final String KERNEL_INDEX = "META-INF/cashmere/kernels.index";
+
     static Cashmere cashmere = null;
 
     /*
@@ -75,18 +98,53 @@ public class Cashmere {
 
     private final String localBase;
 
+    // the context of the host executors and the pool of all executors of getConfigurations
+    private final Context hostContext;
+    private final StealPool localPool;
+
     /*
      * Members for Cashmere
      */
 
     // Maps a kernel/device combination to a discovered speed.
-    private final Map<KernelDevice, Double> kernelSpeeds = new HashMap<KernelDevice, Double>();
-
     private final boolean asynchReads;
 
+    // the properties with which Cashmere was initialized
+    private final TypedProperties properties;
+
+    // the cache of compiled kernels, null if disabled
+    private final KernelCache kernelCache;
+
     // Maps an MCL device name to a Device
     private final Map<String, List<Device>> devices = new HashMap<String, List<Device>>();
 
+    // the kernel sources without the defines given at initialization, see getKernel(String, Map)
+    private Map<String, String> baseKernelSources = new HashMap<String, String>();
+
+    // the compiled specializations of kernels, least recently used first, see evictSpecializations
+    private final Map<String, Specialization> specializations = new LinkedHashMap<String, Specialization>(16, 0.75f, true);
+    private final int maxSpecializations;
+    // the number of specializations removed, so that threads can drop their Kernel handles of them
+    private final AtomicInteger evictions = new AtomicInteger();
+    // the specializations by the names of their kernels, kept after removal, see restoreSpecialization
+    private final Map<String, Specialization> specializedKernels = new ConcurrentHashMap<String, Specialization>();
+
+    // the time in seconds of warming up the devices at initialization
+    private double warmUpTime;
+
+    // the devices on which a kernel is registered, by kernel name, see pickDevice
+    private volatile Map<String, Device[]> candidates = new ConcurrentHashMap<String, Device[]>();
+
+    // the contexts of device-affine executors, and the device to which a thread is bound
+    private final Map<Device, Context> deviceContexts = new LinkedHashMap<Device, Context>();
+    private final ThreadLocal<Device> boundDevice = new ThreadLocal<Device>();
+
+    // the Kernel handles of a thread
+    private final ThreadLocal<KernelHandles> kernelHandles = ThreadLocal.withInitial(KernelHandles::new);
+
+    // executes the launches of submit, created with the devices so that submit does not need a lock
+    private final LaunchScheduler launchScheduler;
+
     // A list of Kernels and Libfuncs
     private final List<ManyCoreUnit> manyCoreUnits = Collections.synchronizedList(new ArrayList<ManyCoreUnit>());
 
@@ -242,7 +300,7 @@ public class Cashmere {
      * @exception CashmereNotAvailable
      *                if Cashmere could not initialize because it could not find suitable many-core devices.
      */
-    public static synchronized Kernel getKernel() throws CashmereNotAvailable {
+    public static Kernel getKernel() throws CashmereNotAvailable {
         return cashmere.getKernel(null, null, null);
     }
 
@@ -255,10 +313,51 @@ public class Cashmere {
      * @exception CashmereNotAvailable
      *                if Cashmere could not initialize because it could not find suitable many-core devices.
      */
-    public static synchronized Kernel getKernel(String name) throws CashmereNotAvailable {
+    public static Kernel getKernel(String name) throws CashmereNotAvailable {
         return cashmere.getKernel(null, name, null);
     }
 
+    /**
+     * Retrieve the MCL kernel with name <code>name</code> for a launch of a given size. Once the execution times of the
+     * kernel have been measured on all devices, the <code>Device</code> is selected on which the launch is expected to
+     * complete first, given the launches pending on the device, the execution time predicted for the problem size, and the
+     * time to transfer the arguments that are not on the device yet.
+     *
+     * @param name
+     *            the name of the kernel
+     * @param problemSize
+     *            the size of the grid of the launch
+     * @param arguments
+     *            the arrays (<code>float[]</code>, <code>double[]</code>, <code>int[]</code>, <code>byte[]</code>),
+     *            {@link Buffer}s, and device memory {@link Pointer}s that are input to the launch
+     * @return the <code>Kernel</code> with name <code>name</code>
+     * @exception CashmereNotAvailable
+     *                if Cashmere could not initialize because it could not find suitable many-core devices.
+     */
+    public static Kernel getKernel(String name, long problemSize, Object... arguments) throws CashmereNotAvailable {
+        return cashmere.getKernel(null, name, null, problemSize, arguments);
+    }
+
+    /**
+     * Retrieve the MCL kernel with name <code>name</code> on the <code>Device</code> where its arguments are. Only devices
+     * that hold all device memory {@link Pointer}s among the arguments are considered. Once the execution times of the kernel
+     * have been measured, the time to transfer the arguments that are not on a device yet is added to its expected completion
+     * time; before that, the device that holds the most bytes of the arguments is selected, so that a chain of kernels stays
+     * on the device that holds its data.
+     *
+     * @param name
+     *            the name of the kernel
+     * @param arguments
+     *            the arrays (<code>float[]</code>, <code>double[]</code>, <code>int[]</code>, <code>byte[]</code>),
+     *            {@link Buffer}s, and device memory {@link Pointer}s that are input to the launch
+     * @return the <code>Kernel</code> with name <code>name</code>
+     * @exception CashmereNotAvailable
+     *                if Cashmere could not initialize because it could not find suitable many-core devices.
+     */
+    public static Kernel getKernelFor(String name, Object... arguments) throws CashmereNotAvailable {
+        return cashmere.getKernel(null, name, null, 0, arguments);
+    }
+
     /**
      * Retrieve the MCL kernel with name <code>name</code> for a specific <code>Device</code>.
      *
@@ -270,10 +369,74 @@ public class Cashmere {
      * @exception CashmereNotAvailable
      *                if Cashmere could not initialize because it could not find suitable many-core devices.
      */
-    public static synchronized Kernel getKernel(String name, Device device) throws CashmereNotAvailable {
+    public static Kernel getKernel(String name, Device device) throws CashmereNotAvailable {
         return cashmere.getKernel(null, name, device);
     }
 
+    /**
+     * Retrieve the MCL kernel with name <code>name</code>, specialized for the given define statements. The first time a
+     * set of defines is requested for a kernel, a variant of the kernel is registered that is compiled on its first launch
+     * on a <code>Device</code>. The variants are kept in a least recently used cache bounded by the property
+     * <code>cashmere.specializations</code> (default 32). A variant is not removed while a launch of it has not been cleaned,
+     * and a <code>Kernel</code> of a removed variant remains valid: the variant is registered again when the kernel is
+     * launched. The defines replace the defines given at initialization for the source file of the kernel.
+     *
+     * @param name
+     *            the name of the kernel
+     * @param defines
+     *            the values of the macros to define, by name
+     * @return the <code>Kernel</code> with name <code>name</code> specialized for <code>defines</code>
+     * @exception CashmereNotAvailable
+     *                if Cashmere could not initialize because it could not find suitable many-core devices.
+     */
+    public static Kernel getKernel(String name, Map<String, String> defines) throws CashmereNotAvailable {
+        return cashmere.getKernel(null, cashmere.specialize(name, defines), null);
+    }
+
+    /**
+     * Submit a launch of the MCL kernel with name <code>name</code>. Unlike a {@link Kernel} from {@link #getKernel()
+     * getKernel}, the launch is bound to a <code>Device</code> only when it is executed. It is queued at the device that is
+     * expected to complete it first, but a device that runs out of work may take it over if the kernel is registered there
+     * and the arguments that are not on that device yet can be transferred cheaply.
+     *
+     * @param name
+     *            the name of the kernel
+     * @param body
+     *            sets the arguments of the launch and launches it
+     * @param arguments
+     *            the arrays (<code>float[]</code>, <code>double[]</code>, <code>int[]</code>, <code>byte[]</code>),
+     *            {@link Buffer}s, and device memory {@link Pointer}s that are input to the launch
+     * @return a <code>Future</code> that completes with the <code>Device</code> that executed the launch
+     * @exception CashmereNotAvailable
+     *                if there is no device on which the kernel is registered
+     */
+    public static Future<Device> submit(String name, LaunchBody body, Object... arguments) throws CashmereNotAvailable {
+        return submit(name, Launch.Priority.NORMAL, body, arguments);
+    }
+
+    /**
+     * Submit a launch of the MCL kernel with name <code>name</code> with a priority. Launches in the queue of a device are
+     * executed in the order of their {@link Launch.Priority}, see {@link #submit(String, LaunchBody, Object...)}.
+     *
+     * @param name
+     *            the name of the kernel
+     * @param priority
+     *            the priority of the launch
+     * @param body
+     *            sets the arguments of the launch and launches it
+     * @param arguments
+     *            the arrays (<code>float[]</code>, <code>double[]</code>, <code>int[]</code>, <code>byte[]</code>),
+     *            {@link Buffer}s, and device memory {@link Pointer}s that are input to the launch
+     * @return a <code>Future</code> that completes with the <code>Device</code> that executed the launch
+     * @exception CashmereNotAvailable
+     *                if there is no device on which the kernel is registered
+     */
+    public static Future<Device> submit(String name, Launch.Priority priority, LaunchBody body, Object... arguments)
+            throws CashmereNotAvailable {
+        Device device = cashmere.pickDevice(name, 0, arguments);
+        return cashmere.launchScheduler.submit(device, name, body, arguments, priority);
+    }
+
     /**
      * Retrieve the library function with library name <code>libraryName</code>.
      *
@@ -320,8 +483,8 @@ public class Cashmere {
      * @exception CashmereNotAvailable
      *                if Cashmere could not initialize because it could not find suitable many-core devices.
      */
-    public static synchronized Device getDevice(String nameKernel) throws CashmereNotAvailable {
-        return cashmere.pickDevice(nameKernel);
+    public static Device getDevice(String nameKernel) throws CashmereNotAvailable {
+        return cashmere.pickDevice(nameKernel, 0, null);
     }
 
     /**
@@ -335,6 +498,109 @@ public class Cashmere {
         return cashmere.getDevicesForKernel(nameKernel);
     }
 
+    /*
+     * Device-affine executors
+     */
+
+    /**
+     * Returns the context of the executors that are bound to a <code>Device</code>. An activity with this context only runs on
+     * the executors for the device created by {@link #getConfigurations(int, int)}.
+     *
+     * @param device
+     *            the <code>Device</code>
+     * @return the context of the executors for <code>device</code>
+     */
+    public static AbstractContext getDeviceContext(Device device) {
+        synchronized (cashmere.deviceContexts) {
+            Context context = cashmere.deviceContexts.get(device);
+            if (context == null) {
+                String name = cashmere.localBase + "cashmere-" + device.getNickName() + "-" + cashmere.deviceContexts.size();
+                context = new Context(name);
+                cashmere.deviceContexts.put(device, context);
+            }
+            return context;
+        }
+    }
+
+    /**
+     * Returns the context of the executors created by {@link #getConfigurations(int, int)} that are not bound to a device.
+     *
+     * @return the context of the host executors
+     */
+    public static AbstractContext getHostContext() {
+        return cashmere.hostContext;
+    }
+
+    /**
+     * Returns a configuration of executors for the devices that Cashmere found: <code>executorsPerDevice</code> executors with
+     * the context of each device, see {@link #getDeviceContext(Device)}, and <code>hostExecutors</code> executors with the
+     * context of {@link #getHostContext()}. The executors of a node belong to and steal from a local pool. The application
+     * may add executors of its own, for example for global activities. Since the devices are known only after initialization,
+     * Cashmere should be initialized without a configuration, after which the configuration is passed to
+     * {@link #createConstellation(ConstellationConfiguration[])}.
+     *
+     * @param executorsPerDevice
+     *            the number of executors per device
+     * @param hostExecutors
+     *            the number of executors that are not bound to a device
+     * @return the configurations of the executors
+     */
+    public static ConstellationConfiguration[] getConfigurations(int executorsPerDevice, int hostExecutors) {
+        List<Device> all = cashmere.getAllDevices();
+        ConstellationConfiguration[] e = new ConstellationConfiguration[all.size() * executorsPerDevice + hostExecutors];
+        int k = 0;
+        for (Device device : all) {
+            for (int i = 0; i < executorsPerDevice; i++) {
+                e[k++] = new ConstellationConfiguration(getDeviceContext(device), cashmere.localPool, cashmere.localPool,
+                        StealStrategy.SMALLEST, StealStrategy.SMALLEST, StealStrategy.SMALLEST);
+            }
+        }
+        for (int i = 0; i < hostExecutors; i++) {
+            e[k++] = new ConstellationConfiguration(cashmere.hostContext, cashmere.localPool, cashmere.localPool,
+                    StealStrategy.SMALLEST, StealStrategy.SMALLEST, StealStrategy.SMALLEST);
+        }
+        return e;
+    }
+
+    /**
+     * Binds the current thread to the <code>Device</code> of the context of <code>activity</code>, if it has the context of a
+     * device, and unbinds it otherwise. Afterwards, {@link #getKernel()} and {@link #getKernel(String)} on this thread return a
+     * kernel on that device whenever the kernel is registered there, and {@link #getLibFunc(String)} returns a library function
+     * on that device. Activities for device-affine executors typically call this method at the start of
+     * <code>initialize</code>.
+     *
+     * @param activity
+     *            the activity that runs on the current thread
+     * @return the <code>Device</code> to which the thread is bound, or <code>null</code> if the context of the activity is not
+     *         the context of a device
+     */
+    public static Device bind(Activity activity) {
+        Device device = null;
+        synchronized (cashmere.deviceContexts) {
+            for (Map.Entry<Device, Context> e : cashmere.deviceContexts.entrySet()) {
+                if (e.getValue().equals(activity.getContext())) {
+                    device = e.getKey();
+                }
+            }
+        }
+        bindThread(device);
+        return device;
+    }
+
+    /**
+     * Binds the current thread to a <code>Device</code> or unbinds it, see {@link #bind(Activity)}.
+     *
+     * @param device
+     *            the <code>Device</code>, or <code>null</code> to unbind the thread
+     */
+    public static void bindThread(Device device) {
+        if (device == null) {
+            cashmere.boundDevice.remove();
+        } else {
+            cashmere.boundDevice.set(device);
+        }
+    }
+
     /**
      * Get the overall timer for the application.
      *
@@ -359,6 +625,20 @@ public class Cashmere {
         return cashmere.retrieveTimer(device, thread, action);
     }
 
+    /**
+     * Get the time it took to warm up the devices at initialization, which happens when the property
+     * <code>cashmere.warmup</code> is set. Warming up compiles nothing, but pages in the contexts and command streams, fills
+     * the pools of staging buffers, and creates the driver objects of the compiled kernels.
+     *
+     * @return the time in seconds, or 0 if the devices were not warmed up
+     */
+    public static double getWarmUpTime() {
+        if (cashmere == null) {
+            throw new Error("Cashmere not initialized yet");
+        }
+        return cashmere.warmUpTime;
+    }
+
     /**
      * Get the {@link Constellation} instance.
      *
@@ -379,7 +659,9 @@ public class Cashmere {
      *
      */
     public static void done() {
-        getConstellation().done();
+        Constellation constellation = getConstellation();
+        cashmere.savePerformanceModels();
+        constellation.done();
     }
 
     /*
@@ -390,73 +672,104 @@ public class Cashmere {
         return asynchReads;
     }
 
-    synchronized static void addTimeForKernel(String kernelName, Device device, double time) {
-        cashmere.addTime(kernelName, device, time);
+    TypedProperties getProperties() {
+        return properties;
+    }
+
+    KernelCache getKernelCache() {
+        return kernelCache;
+    }
+
+    static void addTimeForKernel(String kernelName, Device device, long problemSize, double time) {
+        device.getPerformanceModel().add(kernelName, problemSize, time);
     }
 
     /*
      * Private section of Cashmere
      */
 
-    // Private helper class representing a combination of Kernel on a Device to compare speeds of a device.
-    private class KernelDevice implements Comparable<KernelDevice> {
-        private String kernel;
-        private Device device;
-
-        public KernelDevice(String kernel, Device device) {
-            if (kernel == null) {
-                kernel = "__DEFAULT__";
-            }
-            this.kernel = kernel;
-            this.device = device;
+    // Private helper class representing the variants of the source files of a specialized kernel.
+    private static class Specialization {
+        private final String name;
+        private final String baseName;
+        private final String key;
+        private final String suffix;
+        private final List<String> defineStatements;
+        // from the file name of a variant to the devices it is registered on and the kernels it contains
+        private final Map<String, List<Device>> devices = new HashMap<String, List<Device>>();
+        private final Map<String, List<String>> kernels = new HashMap<String, List<String>>();
+        // set while the specialization is being removed or after it is removed, see evictSpecializations
+        private volatile boolean removed = false;
+
+        Specialization(String baseName, String key, String suffix, List<String> defineStatements) {
+            this.name = baseName + suffix;
+            this.baseName = baseName;
+            this.key = key;
+            this.suffix = suffix;
+            this.defineStatements = defineStatements;
         }
 
-        @Override
-        public boolean equals(Object oo) {
-            if (!(oo instanceof KernelDevice)) {
-                return false;
-            }
-            KernelDevice o = (KernelDevice) oo;
-            return kernel.equals(o.kernel) && device.equals(o.device);
+        void add(String fileName, List<Device> devices, List<String> kernels) {
+            this.devices.put(fileName, devices);
+            this.kernels.put(fileName, kernels);
         }
 
-        @Override
-        public int hashCode() {
-            return kernel.hashCode() + device.hashCode();
+        boolean isEmpty() {
+            return devices.isEmpty();
         }
 
-        @Override
-        public int compareTo(KernelDevice kd) {
-            double expectedTermination;
-            double expectedTerminationDevice;
-            synchronized (this.device) {
-                expectedTermination = (this.device.getNrKernelLaunches() + this.device.getLaunched()) * kernelSpeeds.get(this);
-                if (logger.isInfoEnabled()) {
-                    logger.info("" + this + ": launches = " + (this.device.getNrKernelLaunches() + this.device.getLaunched())
-                            + ", speed = " + kernelSpeeds.get(this));
+        // whether a launch that has not been cleaned uses a kernel of this specialization
+        boolean inUse() {
+            for (String fileName : devices.keySet()) {
+                for (Device device : devices.get(fileName)) {
+                    if (device.kernelsInUse(kernels.get(fileName))) {
+                        return true;
+                    }
                 }
             }
-            synchronized (kd.device) {
-                expectedTerminationDevice = (kd.device.getNrKernelLaunches() + kd.device.getLaunched() + 1)
-                        * kernelSpeeds.get(kd);
-                if (logger.isInfoEnabled()) {
-                    logger.info("" + kd + ": launches = " + (kd.device.getNrKernelLaunches() + kd.device.getLaunched())
-                            + ", speed = " + kernelSpeeds.get(kd));
+            return false;
+        }
+
+        void remove() {
+            logger.info("Removing specialized kernel {}", name);
+            for (String fileName : devices.keySet()) {
+                for (Device device : devices.get(fileName)) {
+                    device.removeKernels(kernels.get(fileName), fileName);
                 }
             }
-            if (logger.isInfoEnabled()) {
-                logger.info("compareTo: " + this + ": expectedTermination = " + expectedTermination + ", " + kd
-                        + ": expectedTermination = " + expectedTerminationDevice);
-            }
-
-            return expectedTermination < expectedTerminationDevice ? -1
-                    : expectedTermination == expectedTerminationDevice ? 0 : 1;
         }
+    }
+
+    // Private helper class representing the Kernel handles of a thread, by device and kernel name.
+    private static class KernelHandles {
+        // the value of evictions when the handles were last checked
+        private int evictions;
+        private final Map<Device, Map<String, Kernel>> handles = new HashMap<Device, Map<String, Kernel>>();
+    }
 
-        @Override
-        public String toString() {
-            return device.toString();
+    /*
+     * The expected completion time of a new launch of the kernel on the device: the launches that are pending on the device,
+     * the execution time predicted for the problem size, and the time to transfer the arguments that are not on the device
+     * yet. A problem size of 0 or less means the size is unknown. The transfers are not calibrated here, because this is on
+     * the path of every launch: until the first transfer calibrates them, they do not count.
+     */
+    private static double expectedCompletion(String kernel, Device device, long problemSize, Object[] arguments) {
+        if (kernel == null) {
+            kernel = "__DEFAULT__";
+        }
+        PerformanceModel model = device.getPerformanceModel();
+        int pending = device.getLoad();
+        double execution = model.predict(kernel, problemSize);
+        double transfer = 0.0;
+        long bytes = device.getNonResidentBytes(arguments);
+        if (bytes > 0) {
+            transfer = device.getTransferPlanner().expectedTime(Argument.Direction.IN, bytes);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("{}: launches = {}, time = {} +/- {}, predicted = {}, transfer = {}", device, pending,
+                    model.getMean(kernel), Math.sqrt(model.getVariance(kernel)), execution, transfer);
         }
+        return pending * model.getMean(kernel) + execution + transfer;
     }
 
     public static void createConstellation(ConstellationConfiguration[] e) throws ConstellationCreationException {
@@ -478,13 +791,64 @@ public class Cashmere {
             int sizeBuffer) throws ConstellationCreationException {
 
         localBase = getLocalBase();
-        asynchReads = new TypedProperties(props).getBooleanProperty("cashmere.asyncReads", false);
+        hostContext = new Context(localBase + "cashmere-host");
+        localPool = new StealPool(localBase + "cashmere");
+        properties = new TypedProperties(props);
+        asynchReads = properties.getBooleanProperty("cashmere.asyncReads", false);
+        kernelCache = KernelCache.create(properties);
+        maxSpecializations = properties.getIntProperty("cashmere.specializations", 32);
         if (e != null) {
             constellation = ConstellationFactory.createConstellation(e);
         }
         setPlatform(Platform.initializePlatform(props, devices, this));
+        initializeTransfers();
         initializeBuffers(nrBuffers, sizeBuffer);
         initializeKernels(defines);
+        if (properties.getBooleanProperty("cashmere.warmup", false)) {
+            warmUpDevices();
+        }
+        launchScheduler = new LaunchScheduler(getAllDevices(), properties);
+    }
+
+    // The devices are warmed up in parallel, to take the work of drivers at the first launches out of the measurements.
+    private void warmUpDevices() {
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<Thread>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (List<Device> list : devices.values()) {
+            if (list == null) {
+                continue;
+            }
+            for (Device device : list) {
+                Thread t = new Thread(() -> {
+                    try {
+                        double time = device.warmUp();
+                        if (logger.isInfoEnabled()) {
+                            logger.info(String.format("Warmed up %s in %.3f s", device, time));
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }, "Cashmere warm-up " + device.getNickName());
+                t.setDaemon(true);
+                t.start();
+                threads.add(t);
+            }
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new Error("Interrupted while warming up devices", e);
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new Error("Could not warm up the devices", failures.get(0));
+        }
+        warmUpTime = (System.nanoTime() - start) / 1e9;
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("Warming up the devices took %.3f s", warmUpTime));
+        }
     }
 
     // ensuring a unique name of local executors
@@ -499,6 +863,16 @@ public class Cashmere {
         return localBase;
     }
 
+    private void initializeTransfers() {
+        if (properties.getProperty("cashmere.transfer.calibrate", "lazy").equals("startup")) {
+            for (List<Device> devicesOfType : devices.values()) {
+                for (Device device : devicesOfType) {
+                    device.getTransferPlanner().calibrate();
+                }
+            }
+        }
+    }
+
     private void initializeBuffers(int nrBuffers, int sizeBuffer) {
         if (nrBuffers > 0) {
             BufferCache.initializeBuffers(sizeBuffer, nrBuffers);
@@ -507,48 +881,108 @@ public class Cashmere {
 
     private void initializeKernels(Map<String, List<String>> defines) {
         Map<String, String> kernelSources = getKernelSources();
+        baseKernelSources.putAll(kernelSources);
         insertDefines(kernelSources, defines);
         storeKernels(kernelSources);
     }
 
+    /*
+     * The kernel sources are found by means of the index resources that the build generates, one per jar or class
+     * directory. Each line of an index holds the resource name of a kernel and the device it targets, so that only
+     * the kernels for the devices on this machine are read. Without an index, only the application jar or class
+     * directory, the first entry of the classpath, is scanned.
+     */
     private Map<String, String> getKernelSources() {
-
         HashMap<String, String> kernelSources = new HashMap<String, String>();
 
-        String classpath = System.getProperty("java.class.path");
-        String[] classpathEntries = classpath.split(File.pathSeparator);
-
         try {
-            // assuming that the application jar is the first
-            URL jar = new URL("file:" + classpathEntries[0]);
-            ZipInputStream zip = new ZipInputStream(jar.openStream());
-            ZipEntry ze = null;
-            while ((ze = zip.getNextEntry()) != null) {
-                if (ze.getName().endsWith(getPlatform().getSuffix())) {
-                    String name = new File(ze.getName()).getName();
-                    BufferedInputStream bis = new BufferedInputStream(zip);
-                    byte[] bytes = new byte[(int) ze.getSize()];
-                    int offset = 0;
-                    int sz = bytes.length;
-                    while (sz > 0) {
-                        int nrRead = bis.read(bytes, offset, sz);
-                        if (nrRead > 0) {
-                            offset += nrRead;
-                            sz -= nrRead;
-                        } else {
-                            throw new Error("Something wrong while reading " + "kernel " + ze.getName());
-                        }
-                    }
-                    logger.debug("Found kernel " + ze.getName() + " with size " + bytes.length);
-                    kernelSources.put(name, new String(bytes));
-                }
+            Enumeration<URL> indexes = Cashmere.class.getClassLoader().getResources(KERNEL_INDEX);
+            if (!indexes.hasMoreElements()) {
+                logger.warn("No {} found, scanning the application for kernels; kernels in other classpath entries"
+                        + " are only found through an index", KERNEL_INDEX);
+                scanKernelSources(kernelSources);
+            }
+            while (indexes.hasMoreElements()) {
+                readKernelIndex(indexes.nextElement(), kernelSources);
             }
         } catch (IOException e) {
-            System.out.println(e);
+            throw new Error("Could not read the kernel sources", e);
         }
         return kernelSources;
     }
 
+    private void readKernelIndex(URL index, Map<String, String> kernelSources) throws IOException {
+        String indexName = index.toString();
+        String base = indexName.substring(0, indexName.length() - KERNEL_INDEX.length());
+        String suffix = getPlatform().getSuffix();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(index.openStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2) {
+                    throw new Error("Malformed line in " + index + ": " + line);
+                }
+                String resource = fields[0];
+                String deviceName = fields[1];
+                if (!resource.endsWith(suffix)) {
+                    continue;
+                }
+                if (devices.get(deviceName) == null) {
+                    logger.debug("Skipping kernel {}, {} not available on this machine", resource, deviceName);
+                    continue;
+                }
+                try (InputStream in = new URL(base + resource).openStream()) {
+                    addKernelSource(resource, IOUtils.toByteArray(in), kernelSources);
+                }
+            }
+        }
+    }
+
+    // assuming that the application jar or class directory is the first entry of the classpath
+    private void scanKernelSources(Map<String, String> kernelSources) throws IOException {
+        String suffix = getPlatform().getSuffix();
+        File file = new File(System.getProperty("java.class.path").split(File.pathSeparator)[0]);
+        if (file.isDirectory()) {
+            scanKernelSources(file, suffix, kernelSources);
+        } else if (file.isFile()) {
+            try (ZipInputStream zip = new ZipInputStream(new FileInputStream(file))) {
+                ZipEntry ze = null;
+                while ((ze = zip.getNextEntry()) != null) {
+                    if (ze.getName().endsWith(suffix)) {
+                        addKernelSource(ze.getName(), IOUtils.toByteArray(zip), kernelSources);
+                    }
+                }
+            }
+        }
+    }
+
+    private void scanKernelSources(File dir, String suffix, Map<String, String> kernelSources) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                scanKernelSources(file, suffix, kernelSources);
+            } else if (file.getName().endsWith(suffix)) {
+                addKernelSource(file.getPath(), Files.readAllBytes(file.toPath()), kernelSources);
+            }
+        }
+    }
+
+    private void addKernelSource(String resource, byte[] bytes, Map<String, String> kernelSources) {
+        String name = new File(resource).getName();
+        logger.debug("Found kernel " + resource + " with size " + bytes.length);
+        if (kernelSources.put(name, new String(bytes)) != null) {
+            logger.warn("Kernel {} found more than once on the classpath, using {}", name, resource);
+        }
+    }
+
     private void insertDefines(Map<String, String> sources, Map<String, List<String>> defines) {
         if (defines == null) {
             defines = new HashMap<String, List<String>>();
@@ -603,6 +1037,14 @@ public class Cashmere {
     }
 
     private void storeKernels(Map<String, String> sources) {
+        if (properties.getBooleanProperty("cashmere.lazyKernels", false)) {
+            registerLazyKernels(sources);
+            return;
+        }
+
+        // Kernels are compiled in parallel, and only once for devices that are identical.
+        ExecutorService compilers = newCompilePool("Cashmere kernel compiler");
+        List<Future<?>> builds = new ArrayList<Future<?>>();
         for (String k : sources.keySet()) {
             String kernelSource = sources.get(k);
             String deviceName = getDeviceNameSource(kernelSource);
@@ -611,12 +1053,191 @@ public class Cashmere {
                 if (list == null) {
                     logger.warn("{} not available on this machine", deviceName);
                 } else {
-                    for (Device device : list) {
-                        device.addKernel(kernelSource, k);
+                    for (List<Device> identical : groupIdenticalDevices(list)) {
+                        builds.add(compilers.submit(() -> {
+                            byte[] binary = identical.get(0).compileKernel(kernelSource, k);
+                            for (Device device : identical.subList(1, identical.size())) {
+                                device.addKernel(binary, kernelSource, k);
+                            }
+                        }));
                     }
                 }
             }
         }
+        compilers.shutdown();
+        waitForBuilds(builds);
+    }
+
+    // Kernels are compiled on their first use, except for the kernels in cashmere.lazyKernels.warmup, which are
+    // compiled in the background.
+    private void registerLazyKernels(Map<String, String> sources) {
+        for (String k : sources.keySet()) {
+            String kernelSource = sources.get(k);
+            List<Device> list = devices.get(getDeviceNameSource(kernelSource));
+            if (list != null) {
+                for (Device device : list) {
+                    device.registerLazyKernel(kernelSource, k);
+                }
+            }
+        }
+
+        // the warm-up compilations share a pool of cashmere.compileThreads threads that is not waited for
+        String warmup = properties.getProperty("cashmere.lazyKernels.warmup", "");
+        ExecutorService compilers = null;
+        for (String name : warmup.split(",")) {
+            String kernelName = name.trim();
+            if (kernelName.length() > 0) {
+                for (Device device : getDevicesForKernel(kernelName)) {
+                    if (compilers == null) {
+                        compilers = newCompilePool("Cashmere kernel warm-up");
+                    }
+                    compilers.submit(() -> {
+                        try {
+                            device.ensureKernel(kernelName);
+                        } catch (Throwable e) {
+                            logger.warn("Warm-up of kernel " + kernelName + " on " + device + " failed", e);
+                        }
+                    });
+                }
+            }
+        }
+        if (compilers != null) {
+            compilers.shutdown();
+        }
+    }
+
+    private ExecutorService newCompilePool(String threadName) {
+        int nrThreads = properties.getIntProperty("cashmere.compileThreads", Runtime.getRuntime().availableProcessors());
+        return Executors.newFixedThreadPool(nrThreads, r -> {
+            Thread t = new Thread(r, threadName);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /*
+     * A specialization is a copy of the source file of a kernel with the defines inserted in which the declarations of all
+     * kernels are renamed with a suffix derived from the defines, so that the variants and the original can be registered side
+     * by side.
+     */
+    private synchronized String specialize(String name, Map<String, String> defines) throws CashmereNotAvailable {
+        List<String> defineStatements = new ArrayList<String>();
+        for (Map.Entry<String, String> define : new TreeMap<String, String>(defines).entrySet()) {
+            defineStatements.add("#define " + define.getKey() + " " + define.getValue() + "\n");
+        }
+        String key = name + "\n" + String.join("", defineStatements);
+
+        Specialization specialization = specializations.get(key);
+        if (specialization != null) {
+            return specialization.name;
+        }
+
+        specialization = new Specialization(name, key, "_" + KernelCache.key(key, "").substring(0, 12), defineStatements);
+        register(specialization);
+        if (specialization.isEmpty()) {
+            throw new CashmereNotAvailable("no devices found where kernel " + name + " is registered");
+        }
+        logger.info("Registered specialized kernel {} for {}", specialization.name, defines);
+        return specialization.name;
+    }
+
+    private void register(Specialization specialization) {
+        for (String fileName : baseKernelSources.keySet()) {
+            String source = baseKernelSources.get(fileName);
+            List<Device> list = devices.get(getDeviceNameSource(source));
+            if (list == null || list.isEmpty()) {
+                continue;
+            }
+            List<String> names = list.get(0).getKernelNames(source, fileName);
+            if (!names.contains(specialization.baseName)) {
+                continue;
+            }
+
+            String variantSource = insertDefines(source, specialization.defineStatements);
+            List<String> variantNames = new ArrayList<String>();
+            for (String kernelName : names) {
+                variantSource = list.get(0).renameKernel(variantSource, kernelName, kernelName + specialization.suffix);
+                variantNames.add(kernelName + specialization.suffix);
+            }
+            int dot = fileName.lastIndexOf('.');
+            String variantFileName = fileName.substring(0, dot) + specialization.suffix + fileName.substring(dot);
+            for (Device device : list) {
+                device.registerLazyKernel(variantSource, variantFileName);
+            }
+            specialization.add(variantFileName, list, variantNames);
+            for (String variantName : variantNames) {
+                specializedKernels.put(variantName, specialization);
+            }
+        }
+        if (!specialization.isEmpty()) {
+            specializations.put(specialization.key, specialization);
+            evictSpecializations();
+        }
+    }
+
+    /*
+     * Register a removed specialization again. A launch calls this after it pinned its kernel, so that the specialization
+     * cannot be removed between this call and the end of the launch.
+     */
+    void restoreSpecialization(String name) {
+        Specialization specialization = name == null ? null : specializedKernels.get(name);
+        if (specialization == null || !specialization.removed) {
+            return;
+        }
+        synchronized (this) {
+            if (specializations.get(specialization.key) == null) {
+                logger.info("Restoring specialized kernel {}", specialization.name);
+                specialization.devices.clear();
+                specialization.kernels.clear();
+                specialization.removed = false;
+                register(specialization);
+            }
+        }
+    }
+
+    /*
+     * Remove the least recently used specializations above cashmere.specializations. A specialization that is used by a
+     * launch that has not been cleaned is kept, because removing it would unload the code of the launch; it is removed by a
+     * later call once it is no longer in use. A launch pins its kernel before it checks whether the specialization is
+     * removed, and the specialization is marked removed before it is checked for use, so that either the launch restores the
+     * specialization or the specialization is kept.
+     */
+    private void evictSpecializations() {
+        Iterator<Specialization> iterator = specializations.values().iterator();
+        while (specializations.size() > maxSpecializations && iterator.hasNext()) {
+            Specialization specialization = iterator.next();
+            specialization.removed = true;
+            if (specialization.inUse()) {
+                specialization.removed = false;
+            } else {
+                iterator.remove();
+                specialization.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // Devices share a binary only when their compiler identities are equal, which requires the identity to name the physical
+    // device and not only its MCL device class.
+    private Collection<List<Device>> groupIdenticalDevices(List<Device> list) {
+        Map<String, List<Device>> identical = new HashMap<String, List<Device>>();
+        for (Device device : list) {
+            String identity = device.getClass().getName() + "/" + device.getCompilerIdentity();
+            identical.computeIfAbsent(identity, x -> new ArrayList<Device>()).add(device);
+        }
+        return identical.values();
+    }
+
+    private void waitForBuilds(List<Future<?>> builds) {
+        for (Future<?> build : builds) {
+            try {
+                build.get();
+            } catch (ExecutionException e) {
+                throw new Error("Could not compile kernel", e.getCause());
+            } catch (InterruptedException e) {
+                throw new Error("Interrupted while compiling kernels", e);
+            }
+        }
     }
 
     private String getDeviceNameSource(String source) {
@@ -658,12 +1279,37 @@ public class Cashmere {
      */
 
     private Kernel getKernel(Constellation executor, String name, Device device) throws CashmereNotAvailable {
+        return getKernel(executor, name, device, 0, null);
+    }
+
+    private Kernel getKernel(Constellation executor, String name, Device device, long problemSize, Object[] arguments)
+            throws CashmereNotAvailable {
         if (device == null) {
-            device = pickDevice(name);
+            Device bound = boundDevice.get();
+            if (bound != null && bound.hasKernel(name) && bound.canAccess(arguments)) {
+                device = bound;
+            } else {
+                device = pickDevice(name, problemSize, arguments);
+            }
+        }
+        if (executor != null) {
+            return new Kernel(name, executor.identifier().toString(), device);
+        }
+        KernelHandles threadHandles = kernelHandles.get();
+        int nrEvictions = evictions.get();
+        if (threadHandles.evictions != nrEvictions) {
+            // drop the handles of kernels that were removed with their specialization
+            for (Map.Entry<Device, Map<String, Kernel>> e : threadHandles.handles.entrySet()) {
+                e.getValue().keySet().removeIf(n -> !e.getKey().hasKernel(n));
+            }
+            threadHandles.evictions = nrEvictions;
+        }
+        Map<String, Kernel> handles = threadHandles.handles.computeIfAbsent(device, d -> new HashMap<String, Kernel>());
+        Kernel kernel = handles.get(name);
+        if (kernel == null) {
+            kernel = new Kernel(name, Thread.currentThread().getName(), device);
+            handles.put(name, kernel);
         }
-        device.setBusy();
-        Kernel kernel = new Kernel(name, (executor != null) ? executor.identifier().toString() : Thread.currentThread().getName(),
-                device);
         return kernel;
     }
 
@@ -676,9 +1322,8 @@ public class Cashmere {
             throws CashmereNotAvailable, LibFuncNotAvailable {
 
         if (device == null) {
-            device = pickFastestDevice();
+            device = boundDevice.get() != null ? boundDevice.get() : pickFastestDevice();
         }
-        device.setBusy();
         if (!initLibraryFuncs.containsKey(name)) {
             throw new LibFuncNotAvailable(name);
         }
@@ -687,12 +1332,26 @@ public class Cashmere {
         return libFunc;
     }
 
+    private List<Device> getAllDevices() {
+        List<Device> all = new ArrayList<Device>();
+        for (List<Device> list : devices.values()) {
+            if (list != null) {
+                for (Device device : list) {
+                    if (!all.contains(device)) {
+                        all.add(device);
+                    }
+                }
+            }
+        }
+        return all;
+    }
+
     private List<Device> getDevicesForKernel(String name) {
         ArrayList<Device> al = new ArrayList<Device>();
         Collection<List<Device>> deviceCollection = devices.values();
         for (List<Device> l : deviceCollection) {
             for (Device device : l) {
-                if (device.registeredKernel(name)) {
+                if (device.hasKernel(name)) {
                     al.add(device);
                 }
             }
@@ -700,40 +1359,77 @@ public class Cashmere {
         return al;
     }
 
-    private synchronized Device pickDevice(String name) throws CashmereNotAvailable {
-        Collection<List<Device>> deviceCollection = devices.values();
-        ArrayList<Device> al = new ArrayList<Device>();
-        ArrayList<KernelDevice> kd = new ArrayList<KernelDevice>();
+    /*
+     * Selecting a device takes no lock: the devices on which a kernel is registered are cached in an array that is dropped
+     * when kernels are registered or removed, and the load of a device is read from its atomic counters. With a handful of
+     * devices per node, a scan over this array is cheaper than keeping a priority queue ordered by loads that change with
+     * every launch.
+     */
+    private Device pickDevice(String name, long problemSize, Object[] arguments) throws CashmereNotAvailable {
+        Device[] candidates = getCandidates(name);
         boolean measuredSpeeds = true;
+        int accessible = 0;
+        for (Device device : candidates) {
+            if (device.canAccess(arguments)) {
+                accessible++;
+                if (!device.getPerformanceModel().hasEstimate(name)) {
+                    measuredSpeeds = false;
+                }
+            }
+        }
 
-        for (List<Device> list : deviceCollection) {
-            for (Device device : list) {
-                logger.debug("Found device: " + device.getName());
-                if (device.registeredKernel(name)) {
-                    KernelDevice d = new KernelDevice(name, device);
-                    if (kernelSpeeds.get(d) == null) {
-                        measuredSpeeds = false;
-                    } else {
-                        kd.add(d);
+        if (accessible == 0) {
+            String kernelMessage = name == null ? "the kernel" : "kernel " + name;
+            if (candidates.length > 0) {
+                throw new CashmereNotAvailable("no device holds all device memory arguments of " + kernelMessage);
+            }
+            throw new CashmereNotAvailable("no devices found where " + kernelMessage + " is registered");
+        }
+
+        Device best = null;
+        if (measuredSpeeds) {
+            double bestCompletion = 0.0;
+            for (Device device : candidates) {
+                if (device.canAccess(arguments)) {
+                    double completion = expectedCompletion(name, device, problemSize, arguments);
+                    if (best == null || completion < bestCompletion) {
+                        best = device;
+                        bestCompletion = completion;
                     }
-                    al.add(device);
                 }
             }
+            return best;
         }
 
-        if (al.size() > 0) {
-            if (measuredSpeeds) {
-                Collections.sort(kd);
-                return kd.get(0).device;
+        // the least loaded device relative to its speed, unless another device already holds more of the arguments.
+        long bestResident = 0;
+        for (Device device : candidates) {
+            if (device.canAccess(arguments)) {
+                long resident = device.getResidentBytes(arguments);
+                if (best == null || resident > bestResident || (resident == bestResident && device.compareTo(best) < 0)) {
+                    best = device;
+                    bestResident = resident;
+                }
             }
+        }
+        return best;
+    }
 
-            Collections.sort(al);
-            // the first is the best.
-            return al.get(0);
+    private Device[] getCandidates(String name) {
+        Map<String, Device[]> cache = candidates;
+        String key = name == null ? "__DEFAULT__" : name;
+        Device[] result = cache.get(key);
+        if (result == null) {
+            List<Device> list = getDevicesForKernel(name);
+            result = list.toArray(new Device[list.size()]);
+            cache.put(key, result);
         }
+        return result;
+    }
 
-        String kernelMessage = name == null ? "the kernel" : "kernel " + name;
-        throw new CashmereNotAvailable("no devices found where " + kernelMessage + " is registered");
+    // called by a Device when its kernels change, so that the candidate devices of kernels are recomputed
+    void kernelsChanged() {
+        candidates = new ConcurrentHashMap<String, Device[]>();
     }
 
     private Device pickFastestDevice() throws CashmereNotAvailable {
@@ -753,11 +1449,13 @@ public class Cashmere {
     }
 
     // add time for a kernel/device combinationy
-    private void addTime(String kernelName, Device device, double time) {
-        KernelDevice d = new KernelDevice(kernelName, device);
-        Double v = kernelSpeeds.get(d);
-        if (v == null || v < time) {
-            kernelSpeeds.put(d, time);
+    private void savePerformanceModels() {
+        for (List<Device> list : devices.values()) {
+            if (list != null) {
+                for (Device device : list) {
+                    device.getPerformanceModel().save();
+                }
+            }
         }
     }
 
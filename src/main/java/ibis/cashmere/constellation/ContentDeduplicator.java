@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Finds arrays with the same content as an array that is already on the
+ * device, so that the device copy can be shared.  Arrays are hashed in
+ * parallel chunks, and a hash match is confirmed by comparing the contents,
+ * so that hash collisions cannot lead to sharing different data.
+ *
+ * An array that is shared is an alias of the canonical array, which is the
+ * key under which the Device keeps the argument.
+ */
+class ContentDeduplicator {
+
+    private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.Device/memory");
+
+    // the number of elements hashed by one task
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final long threshold;
+
+    // canonical arrays per hash
+    private final Map<Long, List<Object>> canonicals = new HashMap<Long, List<Object>>();
+    private final Map<Object, Long> hashes = new IdentityHashMap<Object, Long>();
+    // from alias to canonical array
+    private final Map<Object, Object> aliases = new IdentityHashMap<Object, Object>();
+
+    ContentDeduplicator(long threshold) {
+        this.threshold = threshold;
+    }
+
+    boolean applies(long size) {
+        return size >= threshold;
+    }
+
+    synchronized Object canonical(Object k) {
+        Object c = aliases.get(k);
+        return c == null ? k : c;
+    }
+
+    /*
+     * Returns a resident array with the same content as k, or registers k as
+     * canonical array and returns it.
+     */
+    synchronized <K> K lookup(K k, long hash, Set<K> resident) {
+        List<Object> candidates = canonicals.get(hash);
+        if (candidates == null) {
+            candidates = new ArrayList<Object>();
+            canonicals.put(hash, candidates);
+        }
+        for (Object c : candidates) {
+            if (resident.contains(c) && sameContent(c, k)) {
+                @SuppressWarnings("unchecked")
+                K canonical = (K) c;
+                aliases.put(k, canonical);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("sharing device copy of {} with {}", canonical, k);
+                }
+                return canonical;
+            }
+        }
+        candidates.add(k);
+        hashes.put(k, hash);
+        return k;
+    }
+
+    /*
+     * Called when k is cleaned.  An alias is forgotten, and so is a canonical
+     * array, because its owner may change its content from now on.  When the
+     * owner of a canonical array cleans it while aliases still share its
+     * device copy, one of the aliases becomes the canonical array and is
+     * returned, so that the Device can keep the argument under that alias.
+     */
+    synchronized Object remove(Object k, boolean lastReference) {
+        Object c = aliases.remove(k);
+        if (c != null) {
+            if (lastReference) {
+                forget(c);
+            }
+            return null;
+        }
+        Object successor = null;
+        if (!lastReference) {
+            for (Map.Entry<Object, Object> e : aliases.entrySet()) {
+                if (e.getValue() == k) {
+                    if (successor == null) {
+                        successor = e.getKey();
+                    }
+                    e.setValue(successor);
+                }
+            }
+        }
+        if (successor == null) {
+            forget(k);
+            return null;
+        }
+        aliases.remove(successor);
+        Long hash = hashes.remove(k);
+        if (hash != null) {
+            List<Object> candidates = canonicals.get(hash);
+            candidates.removeIf(x -> x == k);
+            candidates.add(successor);
+            hashes.put(successor, hash);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("device copy of {} is now kept for {}", k, successor);
+        }
+        return successor;
+    }
+
+    static long hash(Object array) {
+        int length = length(array);
+        int nrChunks = (int) (((long) length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        // the end of the last chunk may not fit in an int
+        long hash = IntStream.range(0, nrChunks).parallel().mapToLong(i -> mix(hashChunk(array, i * CHUNK_SIZE,
+                (int) Math.min(length, (i + 1L) * CHUNK_SIZE)) + i)).sum();
+        return mix(hash + length);
+    }
+
+    private void forget(Object c) {
+        Long hash = hashes.remove(c);
+        if (hash != null) {
+            List<Object> candidates = canonicals.get(hash);
+            candidates.removeIf(x -> x == c);
+            if (candidates.isEmpty()) {
+                canonicals.remove(hash);
+            }
+        }
+    }
+
+    private static boolean sameContent(Object a, Object b) {
+        if (a instanceof float[] && b instanceof float[]) {
+            return Arrays.equals((float[]) a, (float[]) b);
+        } else if (a instanceof double[] && b instanceof double[]) {
+            return Arrays.equals((double[]) a, (double[]) b);
+        } else if (a instanceof int[] && b instanceof int[]) {
+            return Arrays.equals((int[]) a, (int[]) b);
+        } else if (a instanceof byte[] && b instanceof byte[]) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        return false;
+    }
+
+    private static int length(Object array) {
+        if (array instanceof float[]) {
+            return ((float[]) array).length;
+        } else if (array instanceof double[]) {
+            return ((double[]) array).length;
+        } else if (array instanceof int[]) {
+            return ((int[]) array).length;
+        } else if (array instanceof byte[]) {
+            return ((byte[]) array).length;
+        }
+        throw new Error("Cannot hash " + array.getClass().getName());
+    }
+
+    // four independent lanes, so that the loop does not depend on the previous element
+    private static long hashChunk(Object array, int from, int to) {
+        long h0 = 0, h1 = 0, h2 = 0, h3 = 0;
+        int i = from;
+        if (array instanceof float[]) {
+            float[] a = (float[]) array;
+            for (; i + 3 < to; i += 4) {
+                h0 = h0 * 31 + Float.floatToRawIntBits(a[i]);
+                h1 = h1 * 31 + Float.floatToRawIntBits(a[i + 1]);
+                h2 = h2 * 31 + Float.floatToRawIntBits(a[i + 2]);
+                h3 = h3 * 31 + Float.floatToRawIntBits(a[i + 3]);
+            }
+            for (; i < to; i++) {
+                h0 = h0 * 31 + Float.floatToRawIntBits(a[i]);
+            }
+        } else if (array instanceof double[]) {
+            double[] a = (double[]) array;
+            for (; i + 3 < to; i += 4) {
+                h0 = h0 * 31 + Double.doubleToRawLongBits(a[i]);
+                h1 = h1 * 31 + Double.doubleToRawLongBits(a[i + 1]);
+                h2 = h2 * 31 + Double.doubleToRawLongBits(a[i + 2]);
+                h3 = h3 * 31 + Double.doubleToRawLongBits(a[i + 3]);
+            }
+            for (; i < to; i++) {
+                h0 = h0 * 31 + Double.doubleToRawLongBits(a[i]);
+            }
+        } else if (array instanceof int[]) {
+            int[] a = (int[]) array;
+            for (; i + 3 < to; i += 4) {
+                h0 = h0 * 31 + a[i];
+                h1 = h1 * 31 + a[i + 1];
+                h2 = h2 * 31 + a[i + 2];
+                h3 = h3 * 31 + a[i + 3];
+            }
+            for (; i < to; i++) {
+                h0 = h0 * 31 + a[i];
+            }
+        } else {
+            byte[] a = (byte[]) array;
+            for (; i + 3 < to; i += 4) {
+                h0 = h0 * 31 + a[i];
+                h1 = h1 * 31 + a[i + 1];
+                h2 = h2 * 31 + a[i + 2];
+                h3 = h3 * 31 + a[i + 3];
+            }
+            for (; i < to; i++) {
+                h0 = h0 * 31 + a[i];
+            }
+        }
+        return mix(h0) + 3 * mix(h1) + 5 * mix(h2) + 7 * mix(h3);
+    }
+
+    // the finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -20,15 +20,30 @@ import static ibis.constellation.util.MemorySizes.toStringBytes;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ibis.util.TypedProperties;
+
 /**
  * Class that represents a many-core <code>Device</code>.
  */
@@ -41,12 +56,14 @@ public abstract class Device implements Comparable<Device> {
     private static final Logger memlogger = LoggerFactory.getLogger("ibis.cashmere.constellation.Device/memory");
     private static final Logger eventlogger = LoggerFactory.getLogger("ibis.cashmere.constellation.Device/event");
 
+    // line and block comments in a kernel source
+    private static final Pattern COMMENT_PATTERN = Pattern.compile("//[^\\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+
     private Cashmere cashmere;
 
     private CommandStream writeQueue;
     private CommandStream executeQueue;
     private CommandStream readQueue;
-    private int nrKernelLaunches;
 
     // the information for this device
     protected final DeviceInfo info;
@@ -61,12 +78,60 @@ public abstract class Device implements Comparable<Device> {
         this.offsetHostDevice = offsetHostDevice;
     }
 
-    // keeping track of the number of kernels launched
-    private int launched;
+    /*
+     * Keeping track of launches, see launchQueued
+     */
+    private final AtomicInteger queuedLaunches = new AtomicInteger();
+    private final AtomicInteger submittedLaunches = new AtomicInteger();
+    private final AtomicInteger executingLaunches = new AtomicInteger();
+    private final AtomicLong bytesInFlight = new AtomicLong();
+    // per priority, indexed by ordinal
+    private final AtomicIntegerArray queuedPerPriority = new AtomicIntegerArray(Launch.Priority.values().length);
+    private final AtomicLongArray completedPerPriority = new AtomicLongArray(Launch.Priority.values().length);
+    private final AtomicLongArray waitTimePerPriority = new AtomicLongArray(Launch.Priority.values().length);
+    // the bound on submitted and executing launches, 0 if they are not bounded
+    private final int maxInFlight;
+    private final PriorityOrder priorityOrder;
+    // the launches waiting for a slot, and the number of slots taken, both guarded by the lock on waitingForSlot
+    private final List<Waiter> waitingForSlot = new ArrayList<Waiter>();
+    private int inFlight;
+    // the execute queues for launches with a priority, if the device supports them
+    private final Map<Launch.Priority, CommandStream> priorityQueues = new EnumMap<Launch.Priority, CommandStream>(
+            Launch.Priority.class);
+    // the execute queues over which the branches of a KernelGraph are spread, created on first use
+    private CommandStream[] graphQueues;
 
     // keeping track of the amount of memory that is reserved
     private long memoryReserved;
 
+    /*
+     * Kernels that are compiled on first use, see ensureKernel
+     */
+    // from kernel name to its source and file name
+    private final Map<String, String[]> lazyKernels = new ConcurrentHashMap<String, String[]>();
+    // the compilations per file name, so that concurrent first uses wait for the same compilation
+    private final Map<String, CompletableFuture<Void>> compilations = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+    // per kernel name, the number of launches that use the kernel and have not been cleaned, see pinKernel
+    private final Map<String, AtomicInteger> kernelUsers = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /*
+     * Tuning and modeling of kernel launches
+     */
+    private Autotuner autotuner;
+    // volatile, so that the launch selection reads it without taking the monitor of the device
+    private volatile PerformanceModel performanceModel;
+
+    /*
+     * Transfers between host and device
+     */
+    private volatile TransferPlanner transferPlanner;
+    private StagingPool stagingPool;
+
+    // sharing device copies of arrays with the same content, null if disabled
+    private final ContentDeduplicator deduplicator;
+    // staging buffers of completed asynchronous transfers, released from callbacks
+    private final Queue<StagingBuffer> completedStagingBuffers = new ConcurrentLinkedQueue<StagingBuffer>();
+
     /*
      * Arguments and their relation to events
      */
@@ -113,6 +178,9 @@ public abstract class Device implements Comparable<Device> {
     public Device(Cashmere cashmere, DeviceInfo info) {
         this.cashmere = cashmere;
 
+        this.maxInFlight = cashmere.getProperties().getIntProperty("cashmere.maxInFlight", 0);
+        this.priorityOrder = new PriorityOrder(cashmere.getProperties());
+
         this.info = info;
 
         readBufferEventsMap = new HashMap<String, ArrayList<DeviceEvent>>();
@@ -146,6 +214,10 @@ public abstract class Device implements Comparable<Device> {
         this.executeEventsBytes = new IdentityHashMap<byte[], ArrayList<DeviceEvent>>();
 
         this.memoryReserved = 0;
+
+        TypedProperties props = cashmere.getProperties();
+        this.deduplicator = props.getBooleanProperty("cashmere.dedup", false)
+                ? new ContentDeduplicator(props.getLongProperty("cashmere.dedup.threshold", 1024 * 1024)) : null;
     }
 
     public abstract DeviceEvent writeNoCreateBuffer(CommandStream q, DeviceEvent[] waitEvents, boolean async, long size, Pointer hostPtr,
@@ -164,12 +236,270 @@ public abstract class Device implements Comparable<Device> {
 
     public abstract Pointer createBuffer(Argument.Direction d, long size);
 
-    public abstract void addKernel(String kernelSource, String fileName);
+    /*
+     * Compiling kernels, see addKernel
+     */
+
+    // the physical device, driver version and compiler options, which together determine the binary of a kernel; devices with
+    // the same identity share binaries, see Cashmere.groupIdenticalDevices
+    protected abstract String getCompilerIdentity();
+
+    // buildKernel and loadKernel may be called concurrently for different kernels
+
+    // compile and register the kernel, and return the binary if the device can produce one
+    protected abstract byte[] buildKernel(String kernelSource, String fileName);
+
+    // register the kernels from a binary that buildKernel returned before
+    protected abstract void loadKernel(byte[] binary, String kernelSource, String fileName);
+
+    // the names of all kernels in a source file, which are registered by one build
+    protected abstract List<String> getKernelNames(String kernelSource, String fileName);
+
+    // the kernel source with the declaration of kernel name renamed to newName
+    protected abstract String renameKernel(String kernelSource, String name, String newName);
+
+    // the kernel source without comments, so that kernels that are commented out are not taken for kernels
+    protected static String stripComments(String kernelSource) {
+        return COMMENT_PATTERN.matcher(kernelSource).replaceAll(" ");
+    }
+
+    // unregister a kernel and release its resources if no other kernel uses them
+    protected abstract void removeKernel(String name);
+
+    /*
+     * Transfer paths, see TransferPlanner
+     */
+
+    protected abstract Set<TransferPath> getTransferPaths();
+
+    protected abstract DeviceEvent writeNoCreateBuffer(TransferPath path, CommandStream q, DeviceEvent[] waitEvents,
+            boolean async, long size, Pointer hostPtr, Pointer devicePtr);
+
+    protected abstract DeviceEvent enqueueReadBuffer(TransferPath path, CommandStream q, boolean asynch, DeviceEvent[] waitEvents,
+            long size, Pointer hostPtr, Pointer devicePtr);
+
+    protected abstract StagingBuffer allocateStagingBuffer(long size);
+
+    // create the driver objects of the compiled kernels, see warmUp
+    protected abstract void warmUpKernels();
+
+    // run action from a callback of the device runtime when the commands on q up to event have completed
+    protected abstract void whenComplete(CommandStream q, DeviceEvent event, Runnable action);
+
+    // create an additional execute queue, see getGraphQueues
+    protected abstract CommandStream createExecuteQueue();
+
+    // enqueue a marker on q and return the event that completes when the commands on q up to the marker have completed
+    protected abstract DeviceEvent recordEvent(CommandStream q);
+
+    // make the commands enqueued on q after this call wait for event
+    protected abstract void waitForEvent(CommandStream q, DeviceEvent event);
 
     /*
      * General device management
      */
 
+    /**
+     * Add a kernel to this device. The kernel is loaded from the binary cache when it was compiled before with the same source,
+     * device, driver and compiler options, and it is compiled and stored in the cache otherwise.
+     *
+     * @param kernelSource
+     *            the source of the kernel, with the defines inserted
+     * @param fileName
+     *            the name of the file that contains the kernel
+     */
+    public void addKernel(String kernelSource, String fileName) {
+        compileKernel(kernelSource, fileName);
+        cashmere.kernelsChanged();
+    }
+
+    // add the kernel and return its binary, or null if there is none
+    byte[] compileKernel(String kernelSource, String fileName) {
+        KernelCache cache = cashmere.getKernelCache();
+        if (cache == null) {
+            return buildKernel(kernelSource, fileName);
+        }
+        String key = KernelCache.key(kernelSource, getCompilerIdentity());
+        byte[] binary = cache.load(key);
+        if (binary != null) {
+            try {
+                loadKernel(binary, kernelSource, fileName);
+                return binary;
+            } catch (RuntimeException e) {
+                logger.warn("Could not load cached binary of " + fileName + " on " + this + ", recompiling", e);
+                cache.remove(key);
+            }
+        }
+        binary = buildKernel(kernelSource, fileName);
+        cache.store(key, binary);
+        return binary;
+    }
+
+    // add the kernel from a binary that an identical device produced
+    void addKernel(byte[] binary, String kernelSource, String fileName) {
+        if (binary != null) {
+            try {
+                loadKernel(binary, kernelSource, fileName);
+                return;
+            } catch (RuntimeException e) {
+                logger.warn("Could not load binary of " + fileName + " on " + this + ", recompiling", e);
+            }
+        }
+        buildKernel(kernelSource, fileName);
+    }
+
+    // register a kernel that is compiled on its first use
+    void registerLazyKernel(String kernelSource, String fileName) {
+        for (String name : getKernelNames(kernelSource, fileName)) {
+            lazyKernels.put(name, new String[] { kernelSource, fileName });
+        }
+        cashmere.kernelsChanged();
+    }
+
+    // remove the kernels of a source file, which may not be compiled yet
+    void removeKernels(List<String> names, String fileName) {
+        for (String name : names) {
+            lazyKernels.remove(name);
+            if (registeredKernel(name)) {
+                removeKernel(name);
+            }
+        }
+        compilations.remove(fileName);
+        cashmere.kernelsChanged();
+    }
+
+    // a launch of the kernel exists, so the kernel should not be removed, see Cashmere.evictSpecializations
+    void pinKernel(String name) {
+        if (name != null) {
+            kernelUsers.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    void unpinKernel(String name) {
+        if (name != null) {
+            kernelUsers.computeIfPresent(name, (n, users) -> users.decrementAndGet() == 0 ? null : users);
+        }
+    }
+
+    // whether a launch that has not been cleaned uses one of the kernels
+    boolean kernelsInUse(List<String> names) {
+        for (String name : names) {
+            if (kernelUsers.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // whether the kernel is compiled or can be compiled on this device
+    boolean hasKernel(String name) {
+        return registeredKernel(name) || (name == null ? lazyKernels.size() == 1 : lazyKernels.containsKey(name));
+    }
+
+    // compile a lazily registered kernel, or wait for the compilation by another thread
+    void ensureKernel(String name) {
+        if (name == null) {
+            if (lazyKernels.size() != 1) {
+                return;
+            }
+            name = lazyKernels.keySet().iterator().next();
+        }
+        String[] kernel = lazyKernels.get(name);
+        if (kernel == null || registeredKernel(name)) {
+            return;
+        }
+        CompletableFuture<Void> compilation = new CompletableFuture<Void>();
+        CompletableFuture<Void> existing = compilations.putIfAbsent(kernel[1], compilation);
+        if (existing != null) {
+            try {
+                existing.join();
+            } catch (CompletionException e) {
+                throw new Error("Could not compile kernel " + name, e.getCause());
+            }
+            return;
+        }
+        try {
+            if (logger.isInfoEnabled()) {
+                logger.info("Compiling {} on first use of kernel {} on {}", kernel[1], name, this);
+            }
+            compileKernel(kernel[0], kernel[1]);
+            compilation.complete(null);
+        } catch (RuntimeException | Error e) {
+            compilations.remove(kernel[1]);
+            compilation.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the {@link TransferPlanner} that decides how data is transferred between the host and this device.
+     *
+     * @return the <code>TransferPlanner</code> of this device
+     */
+    public TransferPlanner getTransferPlanner() {
+        TransferPlanner planner = transferPlanner;
+        if (planner == null) {
+            synchronized (this) {
+                planner = transferPlanner;
+                if (planner == null) {
+                    planner = new TransferPlanner(this, getTransferPaths(), cashmere.getProperties());
+                    transferPlanner = planner;
+                }
+            }
+        }
+        return planner;
+    }
+
+    /**
+     * Create a {@link KernelGraph} that launches kernels on this device, with the dependencies between the launches inferred
+     * from the arrays and <code>Pointer</code>s that they share.
+     *
+     * @return a new <code>KernelGraph</code>
+     */
+    public KernelGraph createKernelGraph() {
+        return new KernelGraph(this);
+    }
+
+    Platform getPlatform() {
+        return cashmere.getPlatform();
+    }
+
+    // the configuration of Cashmere, for the properties of device implementations
+    protected TypedProperties getProperties() {
+        return cashmere.getProperties();
+    }
+
+    PerformanceModel getPerformanceModel() {
+        PerformanceModel model = performanceModel;
+        if (model == null) {
+            synchronized (this) {
+                model = performanceModel;
+                if (model == null) {
+                    model = new PerformanceModel(this, cashmere.getProperties());
+                    performanceModel = model;
+                }
+            }
+        }
+        return model;
+    }
+
+    synchronized Autotuner getAutotuner() {
+        if (autotuner == null) {
+            autotuner = new Autotuner(this, cashmere.getProperties());
+        }
+        return autotuner;
+    }
+
+    synchronized CommandStream[] getGraphQueues() {
+        if (graphQueues == null) {
+            graphQueues = new CommandStream[Math.max(1, cashmere.getProperties().getIntProperty("cashmere.graph.streams", 4))];
+            for (int i = 0; i < graphQueues.length; i++) {
+                graphQueues[i] = createExecuteQueue();
+            }
+        }
+        return graphQueues;
+    }
+
     /**
      * Get the memory capacity of this device.
      *
@@ -210,23 +540,13 @@ public abstract class Device implements Comparable<Device> {
      */
     @Override
     public int compareTo(Device device) {
-        double factor;
-        double expectedTermination;
-        double expectedTerminationDevice;
-        synchronized (this) {
-            factor = 1.0 / info.getSpeed();
-            expectedTermination = getNrKernelLaunches() + getLaunched() + 1;
-        }
-        synchronized (device) {
-            factor = factor * device.info.getSpeed();
-            expectedTerminationDevice = device.getNrKernelLaunches() + device.getLaunched() + 1;
-        }
-
-        expectedTermination *= factor;
+        double factor = device.info.getSpeed() / info.getSpeed();
+        double expectedTermination = (getLoad() + 1) * factor;
+        double expectedTerminationDevice = device.getLoad() + 1;
 
-        if (logger.isInfoEnabled()) {
-            logger.info("compareTo: " + this + ": expectedTermination = " + expectedTermination + ", " + device
-                    + ": expectedTermination = " + expectedTerminationDevice);
+        if (logger.isDebugEnabled()) {
+            logger.debug("compareTo: {}: expectedTermination = {}, {}: expectedTermination = {}", this, expectedTermination,
+                    device, expectedTerminationDevice);
         }
 
         return expectedTermination < expectedTerminationDevice ? -1 : expectedTermination == expectedTerminationDevice ? 0 : 1;
@@ -287,7 +607,7 @@ public abstract class Device implements Comparable<Device> {
     public void copy(Buffer buffer, Argument.Direction d) {
         performCopy(bufferArguments, writeEventsBuffers, writeEventsBuffersInversed, buffer,
                 (writeBufferEvents) -> new BufferArgument(this, getWriteQueue(), getReadQueue(), writeBufferEvents, buffer, d),
-                () -> buffer.capacity());
+                () -> buffer.capacity(), false);
     }
 
     /**
@@ -301,7 +621,8 @@ public abstract class Device implements Comparable<Device> {
      */
     public void copy(float[] a, Argument.Direction d) {
         performCopy(floatArrayArguments, writeEventsFloats, writeEventsFloatsInversed, a,
-                (x) -> new FloatArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d), () -> a.length * 4);
+                (x) -> new FloatArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d),
+                () -> a.length * 4, d == Argument.Direction.IN);
     }
 
     /**
@@ -315,7 +636,8 @@ public abstract class Device implements Comparable<Device> {
      */
     public void copy(double[] a, Argument.Direction d) {
         performCopy(doubleArrayArguments, writeEventsDoubles, writeEventsDoublesInversed, a,
-                (x) -> new DoubleArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d), () -> a.length * 8);
+                (x) -> new DoubleArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d),
+                () -> a.length * 8, d == Argument.Direction.IN);
     }
 
     /**
@@ -329,7 +651,8 @@ public abstract class Device implements Comparable<Device> {
      */
     public void copy(int[] a, Argument.Direction d) {
         performCopy(intArrayArguments, writeEventsInts, writeEventsIntsInversed, a,
-                (x) -> new IntArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d), () -> a.length * 4);
+                (x) -> new IntArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d),
+                () -> a.length * 4, d == Argument.Direction.IN);
     }
 
     /**
@@ -343,7 +666,103 @@ public abstract class Device implements Comparable<Device> {
      */
     public void copy(byte[] a, Argument.Direction d) {
         performCopy(byteArrayArguments, writeEventsBytes, writeEventsBytesInversed, a,
-                (x) -> new ByteArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d), () -> a.length);
+                (x) -> new ByteArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d),
+                () -> a.length, d == Argument.Direction.IN);
+    }
+
+    /**
+     * Start copying a buffer to the device and return immediately. The copy is ordered before any kernel launch that uses
+     * <code>buffer</code> with {@link Launch#setArgumentNoCopy(Buffer,Argument.Direction)}, so that the transfer overlaps with
+     * kernels that are already running. The buffer should not be modified until the copy has completed.
+     *
+     * @param buffer
+     *            a <code>Buffer</code> to be copied to the device
+     * @param d
+     *            indicates the direction of the copied value, {@link Argument.Direction#IN} or
+     *            {@link Argument.Direction#INOUT}
+     * @return the event that completes when the data is on the device, or <code>null</code> if the data is already there. The
+     *         event is owned by this device and should not be cleaned by the caller.
+     */
+    public DeviceEvent prefetch(Buffer buffer, Argument.Direction d) {
+        return performCopy(bufferArguments, writeEventsBuffers, writeEventsBuffersInversed, buffer,
+                (writeBufferEvents) -> new BufferArgument(this, getWriteQueue(), getReadQueue(), writeBufferEvents, buffer, d),
+                () -> buffer.capacity(), false);
+    }
+
+    /**
+     * Start copying an array of floats to the device and return immediately. The copy is ordered before any kernel launch that
+     * uses <code>a</code> with {@link Launch#setArgumentNoCopy(float[],Argument.Direction)}. Since the array is staged on the
+     * host before this method returns, the array may be modified afterwards.
+     *
+     * @param a
+     *            a <code>float</code> array to be copied to the device
+     * @param d
+     *            indicates the direction of the copied value, {@link Argument.Direction#IN} or
+     *            {@link Argument.Direction#INOUT}
+     * @return the event that completes when the data is on the device, or <code>null</code> if the data is already there. The
+     *         event is owned by this device and should not be cleaned by the caller.
+     */
+    public DeviceEvent prefetch(float[] a, Argument.Direction d) {
+        return performCopy(floatArrayArguments, writeEventsFloats, writeEventsFloatsInversed, a,
+                (x) -> new FloatArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d, true),
+                () -> a.length * 4, d == Argument.Direction.IN);
+    }
+
+    /**
+     * Start copying an array of doubles to the device and return immediately. The copy is ordered before any kernel launch that
+     * uses <code>a</code> with {@link Launch#setArgumentNoCopy(double[],Argument.Direction)}. Since the array is staged on the
+     * host before this method returns, the array may be modified afterwards.
+     *
+     * @param a
+     *            a <code>double</code> array to be copied to the device
+     * @param d
+     *            indicates the direction of the copied value, {@link Argument.Direction#IN} or
+     *            {@link Argument.Direction#INOUT}
+     * @return the event that completes when the data is on the device, or <code>null</code> if the data is already there. The
+     *         event is owned by this device and should not be cleaned by the caller.
+     */
+    public DeviceEvent prefetch(double[] a, Argument.Direction d) {
+        return performCopy(doubleArrayArguments, writeEventsDoubles, writeEventsDoublesInversed, a,
+                (x) -> new DoubleArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d, true),
+                () -> a.length * 8, d == Argument.Direction.IN);
+    }
+
+    /**
+     * Start copying an array of ints to the device and return immediately. The copy is ordered before any kernel launch that
+     * uses <code>a</code> with {@link Launch#setArgumentNoCopy(int[],Argument.Direction)}. Since the array is staged on the host
+     * before this method returns, the array may be modified afterwards.
+     *
+     * @param a
+     *            a <code>int</code> array to be copied to the device
+     * @param d
+     *            indicates the direction of the copied value, {@link Argument.Direction#IN} or
+     *            {@link Argument.Direction#INOUT}
+     * @return the event that completes when the data is on the device, or <code>null</code> if the data is already there. The
+     *         event is owned by this device and should not be cleaned by the caller.
+     */
+    public DeviceEvent prefetch(int[] a, Argument.Direction d) {
+        return performCopy(intArrayArguments, writeEventsInts, writeEventsIntsInversed, a,
+                (x) -> new IntArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d, true),
+                () -> a.length * 4, d == Argument.Direction.IN);
+    }
+
+    /**
+     * Start copying an array of bytes to the device and return immediately. The copy is ordered before any kernel launch that
+     * uses <code>a</code> with {@link Launch#setArgumentNoCopy(byte[],Argument.Direction)}. Since the array is staged on the host
+     * before this method returns, the array may be modified afterwards.
+     *
+     * @param a
+     *            a <code>byte</code> array to be copied to the device
+     * @param d
+     *            indicates the direction of the copied value, {@link Argument.Direction#IN} or
+     *            {@link Argument.Direction#INOUT}
+     * @return the event that completes when the data is on the device, or <code>null</code> if the data is already there. The
+     *         event is owned by this device and should not be cleaned by the caller.
+     */
+    public DeviceEvent prefetch(byte[] a, Argument.Direction d) {
+        return performCopy(byteArrayArguments, writeEventsBytes, writeEventsBytesInversed, a,
+                (x) -> new ByteArrayArgument(this, getWriteQueue(), getReadQueue(), x, a, d, true),
+                () -> a.length, d == Argument.Direction.IN);
     }
 
     /**
@@ -448,6 +867,92 @@ public abstract class Device implements Comparable<Device> {
         return performAvailable(a, doubleArrayArguments);
     }
 
+    /**
+     * Whether the memory that <code>pointer</code> points to has been allocated on this device.
+     *
+     * @param pointer
+     *            the <code>Pointer</code> of which is checked to be available on the device
+     * @return true if and only if the memory is on the device
+     */
+    public boolean available(Pointer pointer) {
+        synchronized (pointerArguments) {
+            return pointerArguments.containsKey(pointer);
+        }
+    }
+
+    // the number of bytes of the arguments that would have to be transferred to this device
+    long getNonResidentBytes(Object[] arguments) {
+        long bytes = 0;
+        if (arguments != null) {
+            for (Object a : arguments) {
+                if (a != null && !(a instanceof Pointer) && !isResident(a)) {
+                    bytes += getBytes(a);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    // the number of bytes of the arguments that are on this device already
+    long getResidentBytes(Object[] arguments) {
+        long bytes = 0;
+        if (arguments != null) {
+            for (Object a : arguments) {
+                if (a != null && isResident(a)) {
+                    bytes += getBytes(a);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    // whether a launch with these arguments can execute on this device: memory allocated with allocate() cannot be moved
+    boolean canAccess(Object[] arguments) {
+        if (arguments != null) {
+            for (Object a : arguments) {
+                if (a instanceof Pointer && !available((Pointer) a)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isResident(Object a) {
+        if (a instanceof float[]) {
+            return available((float[]) a);
+        } else if (a instanceof double[]) {
+            return available((double[]) a);
+        } else if (a instanceof int[]) {
+            return available((int[]) a);
+        } else if (a instanceof byte[]) {
+            return available((byte[]) a);
+        } else if (a instanceof Buffer) {
+            return available((Buffer) a);
+        } else if (a instanceof Pointer) {
+            return available((Pointer) a);
+        }
+        throw new Error("Unsupported argument type: " + a.getClass().getName());
+    }
+
+    private long getBytes(Object a) {
+        if (a instanceof float[]) {
+            return 4L * ((float[]) a).length;
+        } else if (a instanceof double[]) {
+            return 8L * ((double[]) a).length;
+        } else if (a instanceof int[]) {
+            return 4L * ((int[]) a).length;
+        } else if (a instanceof byte[]) {
+            return ((byte[]) a).length;
+        } else if (a instanceof Buffer) {
+            return ((Buffer) a).capacity();
+        }
+        synchronized (pointerArguments) {
+            PointerArgument p = pointerArguments.get(a);
+            return p == null ? 0 : p.getSize();
+        }
+    }
+
     /**
      * Get the <code>Buffer</code> from the device. The <code>Buffer</code> is not removed from the device.
      *
@@ -549,9 +1054,8 @@ public abstract class Device implements Comparable<Device> {
      */
     public int clean(Buffer buffer) {
         if (buffer != null) {
-            return performClean(buffer, bufferArguments, buffer.capacity(), () -> {
-                return removeEvent(buffer, executeEventsBuffers, writeEventsBuffers, writeEventsBuffersInversed);
-            });
+            return performClean(buffer, bufferArguments, executeEventsBuffers, writeEventsBuffers,
+                    writeEventsBuffersInversed, buffer.capacity());
         }
         return -1;
     }
@@ -565,9 +1069,27 @@ public abstract class Device implements Comparable<Device> {
      */
     public int clean(float[] a) {
         if (a != null) {
-            return performClean(a, floatArrayArguments, a.length * 4, () -> {
-                return removeEvent(a, executeEventsFloats, writeEventsFloats, writeEventsFloatsInversed);
-            });
+            return performClean(a, floatArrayArguments, executeEventsFloats, writeEventsFloats,
+                    writeEventsFloatsInversed, a.length * 4);
+        }
+        return -1;
+    }
+
+    /**
+     * Clean the memory on the device represented by <code>Pointer</code> <code>pointer</code>, allocated with
+     * {@link #allocate(long)}.
+     *
+     * @param pointer
+     *            the memory to be cleaned
+     * @return the reference count of the memory
+     */
+    public int clean(Pointer pointer) {
+        if (pointer != null) {
+            PointerArgument a = getArgument(pointer);
+            if (a != null) {
+                return performClean(pointer, pointerArguments, executeEventsPointers, writeEventsPointers,
+                        writeEventsPointersInversed, (int) a.getSize());
+            }
         }
         return -1;
     }
@@ -581,9 +1103,8 @@ public abstract class Device implements Comparable<Device> {
      */
     public int clean(byte[] a) {
         if (a != null) {
-            return performClean(a, byteArrayArguments, a.length, () -> {
-                return removeEvent(a, executeEventsBytes, writeEventsBytes, writeEventsBytesInversed);
-            });
+            return performClean(a, byteArrayArguments, executeEventsBytes, writeEventsBytes,
+                    writeEventsBytesInversed, a.length);
         }
         return -1;
     }
@@ -597,9 +1118,8 @@ public abstract class Device implements Comparable<Device> {
      */
     public int clean(int[] a) {
         if (a != null) {
-            return performClean(a, intArrayArguments, a.length * 4, () -> {
-                return removeEvent(a, executeEventsInts, writeEventsInts, writeEventsIntsInversed);
-            });
+            return performClean(a, intArrayArguments, executeEventsInts, writeEventsInts,
+                    writeEventsIntsInversed, a.length * 4);
         }
         return -1;
     }
@@ -613,9 +1133,8 @@ public abstract class Device implements Comparable<Device> {
      */
     public int clean(double[] a) {
         if (a != null) {
-            return performClean(a, doubleArrayArguments, a.length * 8, () -> {
-                return removeEvent(a, executeEventsDoubles, writeEventsDoubles, writeEventsDoublesInversed);
-            });
+            return performClean(a, doubleArrayArguments, executeEventsDoubles, writeEventsDoubles,
+                    writeEventsDoublesInversed, a.length * 8);
         }
         return -1;
     }
@@ -664,21 +1183,184 @@ public abstract class Device implements Comparable<Device> {
      * Setting/querying the state of the device
      */
 
-    public synchronized void setBusy() {
-        setNrKernelLaunches(getNrKernelLaunches() + 1);
+    /*
+     * A launch is queued while it waits in the queue of a LaunchScheduler or for a slot, submitted from the moment it gets
+     * a slot at its launch until its kernel is enqueued, and executing from then until the device completes it. The slot and
+     * the counts are taken at the launch and not when the arguments are set, so that a launch that is never launched holds
+     * nothing but the device copies of its arguments. The property cashmere.maxInFlight bounds the number of submitted and
+     * executing launches per device: a thread that launches while all slots are taken blocks until the device completes a
+     * launch. Waiting launches get a slot in the order of PriorityOrder.
+     */
+    void launchQueued(Launch.Priority priority) {
+        queuedLaunches.incrementAndGet();
+        queuedPerPriority.incrementAndGet(priority.ordinal());
     }
 
-    public synchronized void launched() {
-        setLaunched(getLaunched() + 1);
+    void launchDequeued(Launch.Priority priority, long waitTime) {
+        queuedLaunches.decrementAndGet();
+        queuedPerPriority.decrementAndGet(priority.ordinal());
+        waitTimePerPriority.addAndGet(priority.ordinal(), waitTime);
     }
 
-    public synchronized void setNotBusy() {
-        if (getNrKernelLaunches() > 0) {
-            // Note: not reliable since setBusy is only called for getKernel() and getLibFunc(),
-            // while setNotBusy is called when a launch is actually finished.
-            setNrKernelLaunches(getNrKernelLaunches() - 1);
+    void launchSubmitted(Launch.Priority priority, long bytes) {
+        if (maxInFlight > 0) {
+            synchronized (waitingForSlot) {
+                if (inFlight >= maxInFlight || !waitingForSlot.isEmpty()) {
+                    waitForSlot(priority);
+                }
+                inFlight++;
+            }
         }
-        setLaunched(getLaunched() - 1);
+        submittedLaunches.incrementAndGet();
+        bytesInFlight.addAndGet(bytes);
+    }
+
+    void launchExecuting() {
+        submittedLaunches.decrementAndGet();
+        executingLaunches.incrementAndGet();
+    }
+
+    // a submitted launch will not execute, see Launch.clean
+    void launchAbandoned(long bytes) {
+        submittedLaunches.decrementAndGet();
+        bytesInFlight.addAndGet(-bytes);
+        if (maxInFlight > 0) {
+            synchronized (waitingForSlot) {
+                inFlight--;
+                waitingForSlot.notifyAll();
+            }
+        }
+    }
+
+    // called from a callback of the device runtime, so it does not call into the runtime
+    void launchCompleted(Launch.Priority priority, long bytes) {
+        executingLaunches.decrementAndGet();
+        completedPerPriority.incrementAndGet(priority.ordinal());
+        bytesInFlight.addAndGet(-bytes);
+        if (maxInFlight > 0) {
+            synchronized (waitingForSlot) {
+                inFlight--;
+                waitingForSlot.notifyAll();
+            }
+        }
+    }
+
+    // called with the lock on waitingForSlot
+    private void waitForSlot(Launch.Priority priority) {
+        Waiter waiter = new Waiter(priority, System.nanoTime());
+        waitingForSlot.add(waiter);
+        launchQueued(priority);
+        boolean interrupted = false;
+        while (inFlight >= maxInFlight || nextWaiter() != waiter) {
+            try {
+                waitingForSlot.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        waitingForSlot.remove(waiter);
+        // a next waiter may get a slot as well
+        waitingForSlot.notifyAll();
+        launchDequeued(priority, System.nanoTime() - waiter.since);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Waiter nextWaiter() {
+        long now = System.nanoTime();
+        Waiter next = null;
+        for (Waiter w : waitingForSlot) {
+            if (next == null || priorityOrder.before(w.priority, w.since, next.priority, next.since, now)) {
+                next = w;
+            }
+        }
+        return next;
+    }
+
+    private static class Waiter {
+        final Launch.Priority priority;
+        final long since;
+
+        Waiter(Launch.Priority priority, long since) {
+            this.priority = priority;
+            this.since = since;
+        }
+    }
+
+    // the number of launches that are queued, submitted, or executing on this device, read without locking
+    int getLoad() {
+        return queuedLaunches.get() + submittedLaunches.get() + executingLaunches.get();
+    }
+
+    /**
+     * Returns the number of launches that wait in a queue for this device or for a slot to submit to this device.
+     *
+     * @return the number of queued launches
+     */
+    public int getQueuedLaunches() {
+        return queuedLaunches.get();
+    }
+
+    /**
+     * Returns the number of launches that have a slot on this device and of which the kernel is not enqueued yet.
+     *
+     * @return the number of submitted launches
+     */
+    public int getSubmittedLaunches() {
+        return submittedLaunches.get();
+    }
+
+    /**
+     * Returns the number of launches of which the kernel is enqueued on this device and not yet completed.
+     *
+     * @return the number of executing launches
+     */
+    public int getExecutingLaunches() {
+        return executingLaunches.get();
+    }
+
+    /**
+     * Returns the number of bytes of the array arguments of the submitted and executing launches on this device.
+     *
+     * @return the number of bytes in flight
+     */
+    public long getBytesInFlight() {
+        return bytesInFlight.get();
+    }
+
+    /**
+     * Returns the number of launches with a priority that wait in a queue for this device or for a slot to submit to this
+     * device.
+     *
+     * @param priority
+     *            the priority of the launches
+     * @return the number of queued launches with this priority
+     */
+    public int getQueuedLaunches(Launch.Priority priority) {
+        return queuedPerPriority.get(priority.ordinal());
+    }
+
+    /**
+     * Returns the number of launches with a priority that this device has completed.
+     *
+     * @param priority
+     *            the priority of the launches
+     * @return the number of completed launches with this priority
+     */
+    public long getCompletedLaunches(Launch.Priority priority) {
+        return completedPerPriority.get(priority.ordinal());
+    }
+
+    /**
+     * Returns the total time that launches with a priority have been queued for this device.
+     *
+     * @param priority
+     *            the priority of the launches
+     * @return the total time in seconds
+     */
+    public double getWaitTime(Launch.Priority priority) {
+        return waitTimePerPriority.get(priority.ordinal()) / 1e9;
     }
 
     public boolean asynchReads() {
@@ -772,22 +1454,6 @@ public abstract class Device implements Comparable<Device> {
         }
     }
 
-    public int getNrKernelLaunches() {
-        return nrKernelLaunches;
-    }
-
-    public void setNrKernelLaunches(int nrKernelLaunches) {
-        this.nrKernelLaunches = nrKernelLaunches;
-    }
-
-    public int getLaunched() {
-        return launched;
-    }
-
-    public void setLaunched(int launched) {
-        this.launched = launched;
-    }
-
     public CommandStream getWriteQueue() {
         return writeQueue;
     }
@@ -804,6 +1470,15 @@ public abstract class Device implements Comparable<Device> {
         this.executeQueue = executeQueue;
     }
 
+    public CommandStream getExecuteQueue(Launch.Priority priority) {
+        CommandStream q = priorityQueues.get(priority);
+        return q == null ? executeQueue : q;
+    }
+
+    public void setExecuteQueue(Launch.Priority priority, CommandStream executeQueue) {
+        priorityQueues.put(priority, executeQueue);
+    }
+
     public CommandStream getReadQueue() {
         return readQueue;
     }
@@ -812,6 +1487,77 @@ public abstract class Device implements Comparable<Device> {
         this.readQueue = readQueue;
     }
 
+    /*
+     * Warming up, see Cashmere.warmUpDevices
+     */
+
+    // do the work that would otherwise slow down the first launches, and return the time it took in seconds
+    double warmUp() {
+        long start = System.nanoTime();
+        TypedProperties props = cashmere.getProperties();
+
+        // page in the context and the command streams with a small round trip
+        byte[] host = new byte[4096];
+        Pointer hostPtr = cashmere.getPlatform().toPointer(host);
+        Pointer devicePtr = createBuffer(Argument.Direction.INOUT, host.length);
+        try {
+            writeNoCreateBuffer(TransferPath.PAGEABLE, getWriteQueue(), null, false, host.length, hostPtr, devicePtr);
+            enqueueReadBuffer(TransferPath.PAGEABLE, getReadQueue(), false, null, host.length, hostPtr, devicePtr);
+        } finally {
+            devicePtr.clean();
+        }
+
+        // the transfers are not calibrated here: with cashmere.transfer.calibrate=startup they are calibrated before the
+        // warm-up, and otherwise at the first transfer that has to choose between paths
+
+        // fill the pool of staging buffers
+        if (getTransferPaths().size() > 1) {
+            long size = props.getLongProperty("cashmere.warmup.stagingSize", 1024 * 1024);
+            List<StagingBuffer> buffers = new ArrayList<StagingBuffer>();
+            for (int i = 0; i < props.getIntProperty("cashmere.transfer.stagingBuffers", 4); i++) {
+                buffers.add(acquireStagingBuffer(size));
+            }
+            for (StagingBuffer buffer : buffers) {
+                releaseStagingBuffer(buffer);
+            }
+        }
+
+        warmUpKernels();
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /*
+     * Staging buffers for transfers
+     */
+
+    protected StagingBuffer acquireStagingBuffer(long size) {
+        synchronized (this) {
+            if (stagingPool == null) {
+                TypedProperties props = cashmere.getProperties();
+                stagingPool = new StagingPool(s -> allocateStagingBuffer(s),
+                        props.getIntProperty("cashmere.transfer.stagingBuffers", 4),
+                        props.getLongProperty("cashmere.transfer.maxStaging", 64 * 1024 * 1024));
+            }
+        }
+        StagingBuffer completed;
+        while ((completed = completedStagingBuffers.poll()) != null) {
+            stagingPool.release(completed);
+        }
+        return stagingPool.acquire(size);
+    }
+
+    protected void releaseStagingBuffer(StagingBuffer buffer) {
+        stagingPool.release(buffer);
+    }
+
+    /*
+     * Callbacks of the device runtime are not allowed to call into the runtime, so
+     * instead of releasing the buffer, it is queued and released at the next acquire.
+     */
+    protected void releaseStagingBufferFromCallback(StagingBuffer buffer) {
+        completedStagingBuffers.add(buffer);
+    }
+
     /*
      * Debugging
      */
@@ -833,13 +1579,19 @@ public abstract class Device implements Comparable<Device> {
      * Managing arguments/memory on the device
      */
 
-    private <K, V extends ArrayArgument> void performCopy(Map<K, V> map, Map<K, DeviceEvent> writeEvents,
+    private <K, V extends ArrayArgument> DeviceEvent performCopy(Map<K, V> map, Map<K, DeviceEvent> writeEvents,
             Map<DeviceEvent, K> writeEventsInversed, K k, Function<ArrayList<DeviceEvent>, V> makeNewArgument,
-            Supplier<Integer> size) {
+            Supplier<Integer> size, boolean dedup) {
 
         boolean madeNewArgument;
         ArrayList<DeviceEvent> writeBufferEvents = null;
+        k = canonical(k);
+        boolean deduplicate = dedup && deduplicator != null && deduplicator.applies(size.get()) && !performAvailable(k, map);
+        long hash = deduplicate ? ContentDeduplicator.hash(k) : 0;
         synchronized (map) {
+            if (deduplicate && !map.containsKey(k)) {
+                k = deduplicator.lookup(k, hash, map.keySet());
+            }
             if (!map.containsKey(k)) {
                 writeBufferEvents = new ArrayList<DeviceEvent>();
                 map.put(k, makeNewArgument.apply(writeBufferEvents));
@@ -870,20 +1622,26 @@ public abstract class Device implements Comparable<Device> {
                     DeviceEvent event = writeBufferEvents.get(0);
                     writeEvents.put(k, event);
                     writeEventsInversed.put(event, k);
-                } else {
+                    return event;
+                } else if (writeBufferEvents.size() > 1) {
                     throw new Error("Should not happen");
                 }
             }
         }
+        synchronized (writeEvents) {
+            return writeEvents.get(k);
+        }
     }
 
     private <K, V extends ArrayArgument> boolean performAvailable(K k, Map<K, V> map) {
+        k = canonical(k);
         synchronized (map) {
             return map.get(k) != null;
         }
     }
 
     private <K, V extends ArrayArgument> void performGet(K k, Map<K, V> map, Map<K, ArrayList<DeviceEvent>> executeEvents) {
+        k = canonical(k);
         V v;
         synchronized (map) {
             v = map.get(k);
@@ -914,10 +1672,12 @@ public abstract class Device implements Comparable<Device> {
         releaseEvents(execEvents);
     }
 
-    private <K, V extends ArrayArgument> int performClean(K k, Map<K, V> map, int size, Supplier<DeviceEvent> cleanEvents) {
+    private <K, V extends ArrayArgument> int performClean(K k, Map<K, V> map, Map<K, ArrayList<DeviceEvent>> executeEvents,
+            Map<K, DeviceEvent> writeEvents, Map<DeviceEvent, K> writeEventsInversed, int size) {
+        K c = canonical(k);
         V v;
         synchronized (map) {
-            v = map.get(k);
+            v = map.get(c);
         }
         if (v == null) {
             return -1;
@@ -927,9 +1687,9 @@ public abstract class Device implements Comparable<Device> {
 
         if (refCount == 0) {
             synchronized (map) {
-                map.remove(k);
+                map.remove(c);
             }
-            cleanEvents.get();
+            removeEvent(k, executeEvents, writeEvents, writeEventsInversed);
 
             if (memlogger.isDebugEnabled()) {
                 synchronized (this) {
@@ -939,11 +1699,48 @@ public abstract class Device implements Comparable<Device> {
                 }
             }
         }
+        if (deduplicator != null) {
+            @SuppressWarnings("unchecked")
+            K successor = (K) deduplicator.remove(k, refCount == 0);
+            if (successor != null) {
+                // the owner may change k from now on, so k should no longer find the shared argument
+                rekey(k, successor, map, executeEvents, writeEvents, writeEventsInversed);
+            }
+        }
 
         return refCount;
     }
 
+    private <K, V> void rekey(K from, K to, Map<K, V> map, Map<K, ArrayList<DeviceEvent>> executeEvents,
+            Map<K, DeviceEvent> writeEvents, Map<DeviceEvent, K> writeEventsInversed) {
+        synchronized (map) {
+            map.put(to, map.remove(from));
+        }
+        synchronized (executeEvents) {
+            ArrayList<DeviceEvent> events = executeEvents.remove(from);
+            if (events != null) {
+                executeEvents.put(to, events);
+            }
+        }
+        synchronized (writeEvents) {
+            DeviceEvent event = writeEvents.remove(from);
+            if (event != null) {
+                writeEvents.put(to, event);
+                if (writeEventsInversed.get(event) == from) {
+                    writeEventsInversed.put(event, to);
+                }
+            }
+        }
+    }
+
+    // arrays with the same content may share the argument of a canonical array
+    @SuppressWarnings("unchecked")
+    private <K> K canonical(K k) {
+        return deduplicator == null ? k : (K) deduplicator.canonical(k);
+    }
+
     private <K, V extends ArrayArgument> V getArgumentGeneric(K k, Map<K, V> map) {
+        k = canonical(k);
         synchronized (map) {
             return map.get(k);
         }
@@ -962,6 +1759,7 @@ public abstract class Device implements Comparable<Device> {
 
     private <K> DeviceEvent removeEvent(K k, Map<K, ArrayList<DeviceEvent>> executeEvents, Map<K, DeviceEvent> writeEvents,
             Map<DeviceEvent, K> writeEventsInversed) {
+        k = canonical(k);
 
         synchronized (executeEvents) {
             executeEvents.remove(k);
@@ -985,6 +1783,7 @@ public abstract class Device implements Comparable<Device> {
     }
 
     private <K> ArrayList<DeviceEvent> getExecuteEvents(K k, Map<K, ArrayList<DeviceEvent>> map) {
+        k = canonical(k);
         ArrayList<DeviceEvent> events;
         synchronized (map) {
             events = map.get(k);
@@ -997,6 +1796,7 @@ public abstract class Device implements Comparable<Device> {
     }
 
     private <K> DeviceEvent getWriteEventGeneric(K k, Map<K, DeviceEvent> writeEvents) {
+        k = canonical(k);
         synchronized (writeEvents) {
             return writeEvents.get(k);
         }
@@ -24,14 +24,21 @@ public class DoubleArrayArgument extends ArrayArgument {
 
     public DoubleArrayArgument(Device device, CommandStream writeQueue, CommandStream readQueue,
             ArrayList<DeviceEvent> writeBufferEvents, double[] ds, Direction d) {
+        this(device, writeQueue, readQueue, writeBufferEvents, ds, d, false);
+    }
+
+    public DoubleArrayArgument(Device device, CommandStream writeQueue, CommandStream readQueue,
+            ArrayList<DeviceEvent> writeBufferEvents, double[] ds, Direction d, boolean async) {
         super(device, d, readQueue);
 
         this.ds = ds;
         Pointer dsPointer = Cashmere.cashmere.getPlatform().toPointer(ds);
 
         if (d == Direction.IN || d == Direction.INOUT) {
-            DeviceEvent event = writeBuffer(device, writeQueue, ds.length * Platform.DOUBLE_SIZE, dsPointer);
-            assert(event == null);
+            DeviceEvent event = writeBuffer(device, writeQueue, ds.length * Platform.DOUBLE_SIZE, dsPointer, async);
+            if (event != null) {
+                writeBufferEvents.add(event);
+            }
         } else {
             createBuffer(device, ds.length * Platform.DOUBLE_SIZE, dsPointer);
         }
@@ -24,14 +24,21 @@ public class FloatArrayArgument extends ArrayArgument {
 
     public FloatArrayArgument(Device device, CommandStream writeQueue, CommandStream readQueue,
             ArrayList<DeviceEvent> writeBufferEvents, float[] fs, Direction d) {
+        this(device, writeQueue, readQueue, writeBufferEvents, fs, d, false);
+    }
+
+    public FloatArrayArgument(Device device, CommandStream writeQueue, CommandStream readQueue,
+            ArrayList<DeviceEvent> writeBufferEvents, float[] fs, Direction d, boolean async) {
         super(device, d, readQueue);
 
         this.fs = fs;
         Pointer fsPointer = Cashmere.cashmere.getPlatform().toPointer(fs);
 
         if (d == Direction.IN || d == Direction.INOUT) {
-            DeviceEvent event = writeBuffer(device, writeQueue, fs.length * Platform.FLOAT_SIZE, fsPointer);
-            assert(event == null);
+            DeviceEvent event = writeBuffer(device, writeQueue, fs.length * Platform.FLOAT_SIZE, fsPointer, async);
+            if (event != null) {
+                writeBufferEvents.add(event);
+            }
         } else {
             createBuffer(device, fs.length * Platform.FLOAT_SIZE, fsPointer);
         }
@@ -24,6 +24,11 @@ public class IntArrayArgument extends ArrayArgument {
 
     public IntArrayArgument(Device device, CommandStream writeQueue, CommandStream readQueue,
             ArrayList<DeviceEvent> writeBufferEvents, int[] is, Direction d) {
+        this(device, writeQueue, readQueue, writeBufferEvents, is, d, false);
+    }
+
+    public IntArrayArgument(Device device, CommandStream writeQueue, CommandStream readQueue,
+            ArrayList<DeviceEvent> writeBufferEvents, int[] is, Direction d, boolean async) {
         super(device, d, readQueue);
 
         this.is = is;
@@ -31,8 +36,10 @@ public class IntArrayArgument extends ArrayArgument {
         Pointer isPointer = Cashmere.cashmere.getPlatform().toPointer(is);
 
         if (d == Direction.IN || d == Direction.INOUT) {
-            DeviceEvent event = writeBuffer(device, writeQueue, is.length * Platform.INT_SIZE, isPointer);
-            assert(event == null);
+            DeviceEvent event = writeBuffer(device, writeQueue, is.length * Platform.INT_SIZE, isPointer, async);
+            if (event != null) {
+                writeBufferEvents.add(event);
+            }
         } else {
             createBuffer(device, is.length * Platform.INT_SIZE, isPointer);
         }
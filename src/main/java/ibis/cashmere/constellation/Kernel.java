@@ -47,7 +47,40 @@ public class Kernel extends ManyCoreUnit {
      * @return a new {@link KernelLaunch}
      */
     public KernelLaunch createLaunch(String threadName) {
-        return device.createLaunch(name, threadName);
+        // the pin keeps a specialization of the kernel from being removed until the launch pins the kernel itself
+        device.pinKernel(name);
+        try {
+            Cashmere.cashmere.restoreSpecialization(name);
+            device.ensureKernel(name);
+            return device.createLaunch(name, threadName);
+        } finally {
+            device.unpinKernel(name);
+        }
+    }
 
+    /**
+     * Create a {@link TiledLaunch} for this <code>Kernel</code>, to execute it in tiles over an index space whose arguments do
+     * not fit in the memory of the device.
+     *
+     * @param partitioning
+     *            how the arrays are partitioned over the index space
+     * @param nrIndices
+     *            the number of indices in the index space
+     * @return a new {@link TiledLaunch}
+     */
+    public TiledLaunch createTiledLaunch(TiledLaunch.Partitioning partitioning, int nrIndices) {
+        return new TiledLaunch(this, partitioning, nrIndices);
+    }
+
+    /**
+     * Create a {@link SplitLaunch} for this <code>Kernel</code>, to execute an index space partly on the device and partly on the
+     * cores of the host.
+     *
+     * @param nrIndices
+     *            the number of indices in the index space
+     * @return a new {@link SplitLaunch}
+     */
+    public SplitLaunch createSplitLaunch(int nrIndices) {
+        return new SplitLaunch(this, nrIndices);
     }
 }
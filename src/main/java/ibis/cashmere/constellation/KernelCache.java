@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.util.TypedProperties;
+
+/*
+ * A content-addressed cache on disk for compiled kernels.  The key of a
+ * binary is a hash of the source of the kernel (with the defines inserted)
+ * and the identity of the compiler, which consists of the device name,
+ * the driver version and the compiler options.  A changed kernel, driver or
+ * option therefore never matches an old binary.
+ *
+ * The cache is configured with cashmere.kernelCache (true by default) and
+ * cashmere.kernelCache.dir (~/.cashmere/kernels by default).
+ */
+class KernelCache {
+
+    private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.Cashmere/kernelCache");
+
+    private final File dir;
+
+    private KernelCache(File dir) {
+        this.dir = dir;
+    }
+
+    static KernelCache create(TypedProperties props) {
+        if (!props.getBooleanProperty("cashmere.kernelCache", true)) {
+            return null;
+        }
+        String dir = props.getProperty("cashmere.kernelCache.dir",
+                System.getProperty("user.home") + File.separator + ".cashmere" + File.separator + "kernels");
+        return new KernelCache(new File(dir));
+    }
+
+    static String key(String source, String compilerIdentity) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(compilerIdentity.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 not available", e);
+        }
+    }
+
+    byte[] load(String key) {
+        File file = new File(dir, key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] binary = Files.readAllBytes(file.toPath());
+            if (logger.isDebugEnabled()) {
+                logger.debug("loaded kernel binary {}", file);
+            }
+            return binary;
+        } catch (IOException e) {
+            logger.warn("Could not read kernel binary " + file, e);
+            return null;
+        }
+    }
+
+    void store(String key, byte[] binary) {
+        if (binary == null || binary.length == 0) {
+            return;
+        }
+        File file = new File(dir, key);
+        try {
+            Files.createDirectories(dir.toPath());
+            // write to a temporary file first, so that concurrent readers never see a partial binary
+            File tmp = File.createTempFile(key, ".tmp", dir);
+            Files.write(tmp.toPath(), binary);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (logger.isDebugEnabled()) {
+                logger.debug("stored kernel binary {}", file);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write kernel binary " + file, e);
+        }
+    }
+
+    void remove(String key) {
+        new File(dir, key).delete();
+    }
+}
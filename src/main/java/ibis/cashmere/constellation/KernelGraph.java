@@ -0,0 +1,333 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ibis.cashmere.constellation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A graph of kernel launches on one {@link Device}. The nodes are added with {@link #add add} and are launched by {@link #run} in
+ * the order in which they were added. The edges are not given, but inferred from the arrays, <code>Buffer</code>s and
+ * <code>Pointer</code>s that the launches share: a launch that reads an argument depends on the launch that last wrote it, and a
+ * launch that writes an argument depends on the launch that last wrote it and on the launches that read it since.
+ * <p>
+ * Within a graph, array arguments are never copied per launch. An array that is not yet on the device is copied before its first
+ * use and stays on the device until the graph completes, so intermediate results do not travel to the host. The arrays that are
+ * written and not read by a later launch are the results of the graph and are copied back to the host, as are the arrays given
+ * to {@link #addResult}. <code>Pointer</code> arguments should refer to memory allocated on the device with
+ * {@link Device#allocate}; their contents remain on the device.
+ * <p>
+ * The launches are spread over the execute queues of the device, by default 4, see the property
+ * <code>cashmere.graph.streams</code>. A launch continues on the queue of one of the launches it depends on, and waits with an
+ * event for the launches on other queues, so that independent branches of the graph execute concurrently. The host waits only
+ * once, when all launches have been enqueued.
+ */
+public class KernelGraph {
+
+    private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.KernelGraph");
+
+    private final Device device;
+    private final List<Node> nodes = new ArrayList<Node>();
+    private final Map<Launch, Node> launches = new IdentityHashMap<Launch, Node>();
+
+    // per argument, the launches that write and read it
+    private final Map<Object, Use> uses = new IdentityHashMap<Object, Use>();
+    // the arrays copied to the device by this graph
+    private final List<Object> copied = new ArrayList<Object>();
+    private final Set<Object> results = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    private int nextQueue;
+    private boolean ran;
+
+    private static class Node {
+        final String kernelName;
+        final LaunchBody body;
+        final Set<Node> dependencies = new LinkedHashSet<Node>();
+        Launch launch;
+        CommandStream queue;
+        // whether a later launch continues on the queue of this launch
+        boolean continued;
+        // completes when this launch has completed
+        DeviceEvent marker;
+
+        Node(String kernelName, LaunchBody body) {
+            this.kernelName = kernelName;
+            this.body = body;
+        }
+    }
+
+    private static class Use {
+        Node writer;
+        List<Node> readers = new ArrayList<Node>();
+        // whether a launch read the argument after the last write by another launch
+        boolean readAfterWrite;
+    }
+
+    KernelGraph(Device device) {
+        this.device = device;
+    }
+
+    /*
+     * Public methods
+     */
+
+    /**
+     * Add a launch of kernel <code>kernelName</code> to this graph. When the graph runs, <code>body</code> is called with a
+     * {@link KernelLaunch} of the kernel on the device of this graph, typically to call a generated <code>MCL.launch</code> method.
+     * The body should launch exactly once.
+     *
+     * @param kernelName
+     *            the name of the kernel
+     * @param body
+     *            sets the arguments of the launch and launches it
+     */
+    public void add(String kernelName, LaunchBody body) {
+        if (ran) {
+            throw new Error("Cannot add a launch to a KernelGraph that has run");
+        }
+        nodes.add(new Node(kernelName, body));
+    }
+
+    /**
+     * Copy <code>array</code> back to the host when the graph completes, even if a later launch reads it. The array is an array of
+     * <code>float</code>s, <code>double</code>s, <code>int</code>s or <code>byte</code>s, or a <code>Buffer</code>.
+     *
+     * @param array
+     *            the array that is a result of this graph
+     */
+    public void addResult(Object array) {
+        if (array instanceof Pointer) {
+            throw new Error("The contents of a Pointer remain on the device, use Device.get to retrieve them");
+        }
+        results.add(array);
+    }
+
+    /**
+     * Launch all kernels of this graph and wait until they have completed. After this method returns, the results of the graph
+     * are in the host arrays. A graph can only run once.
+     *
+     * @exception CashmereNotAvailable
+     *                if a kernel cannot be launched on the device
+     */
+    public void run() throws CashmereNotAvailable {
+        if (ran) {
+            throw new Error("A KernelGraph can only run once");
+        }
+        ran = true;
+
+        try {
+            try {
+                for (Node node : nodes) {
+                    KernelLaunch launch = Cashmere.getKernel(node.kernelName, device).createLaunch();
+                    launch.setGraph(this);
+                    node.launch = launch;
+                    launches.put(launch, node);
+                    node.body.launch(launch);
+                    if (node.marker == null) {
+                        throw new Error("The body of " + node.kernelName + " in a KernelGraph did not launch");
+                    }
+                }
+            } finally {
+                waitForMarkers();
+            }
+
+            for (Node node : nodes) {
+                node.launch.finish();
+            }
+            for (Map.Entry<Object, Use> e : uses.entrySet()) {
+                Use u = e.getValue();
+                if (u.writer != null && !u.readAfterWrite && !(e.getKey() instanceof Pointer)) {
+                    results.add(e.getKey());
+                }
+            }
+            for (Object a : results) {
+                getWhole(device, a);
+            }
+        } finally {
+            for (Node node : nodes) {
+                if (node.launch != null) {
+                    node.launch.clean();
+                }
+                if (node.marker != null) {
+                    node.marker.clean();
+                }
+            }
+            for (Object a : copied) {
+                cleanWhole(device, a);
+            }
+        }
+    }
+
+    /*
+     * Methods for Launch
+     */
+
+    // register that launch uses argument a in direction d, and make sure a is on the device
+    void use(Launch launch, Object a, Argument.Direction d) {
+        Node node = launches.get(launch);
+        Use u = uses.get(a);
+        if (u == null) {
+            u = new Use();
+            uses.put(a, u);
+            if (a instanceof Pointer) {
+                if (!device.available((Pointer) a)) {
+                    throw new Error("A Pointer in a KernelGraph should be allocated on " + device);
+                }
+            } else if (!availableWhole(device, a)) {
+                // the host contents are only needed when the first use reads them
+                copyWhole(device, a, d == Argument.Direction.OUT ? Argument.Direction.OUT : Argument.Direction.INOUT);
+                copied.add(a);
+            }
+        }
+
+        boolean reads = d != Argument.Direction.OUT;
+        boolean writes = d != Argument.Direction.IN;
+        if (reads && u.writer != null && u.writer != node) {
+            node.dependencies.add(u.writer);
+            u.readAfterWrite = true;
+        }
+        if (writes) {
+            if (u.writer != null && u.writer != node) {
+                node.dependencies.add(u.writer);
+            }
+            for (Node reader : u.readers) {
+                if (reader != node) {
+                    node.dependencies.add(reader);
+                }
+            }
+            u.writer = node;
+            u.readers.clear();
+            u.readAfterWrite = false;
+        }
+        if (reads) {
+            u.readers.add(node);
+        }
+    }
+
+    // choose the execute queue for launch and make it wait for the launches it depends on
+    CommandStream beforeLaunch(Launch launch) {
+        Node node = launches.get(launch);
+        CommandStream q = null;
+        for (Node dependency : node.dependencies) {
+            if (!dependency.continued) {
+                dependency.continued = true;
+                q = dependency.queue;
+                break;
+            }
+        }
+        if (q == null) {
+            CommandStream[] queues = device.getGraphQueues();
+            q = queues[nextQueue++ % queues.length];
+        }
+        node.queue = q;
+
+        for (Node dependency : node.dependencies) {
+            if (dependency.queue != q) {
+                device.waitForEvent(q, dependency.marker);
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} in KernelGraph depends on {} launches", node.kernelName, node.dependencies.size());
+        }
+        return q;
+    }
+
+    void afterLaunch(Launch launch) {
+        Node node = launches.get(launch);
+        node.marker = device.recordEvent(node.queue);
+    }
+
+    /*
+     * Private methods
+     */
+
+    private void waitForMarkers() {
+        List<DeviceEvent> markers = new ArrayList<DeviceEvent>();
+        for (Node node : nodes) {
+            if (node.marker != null) {
+                markers.add(node.marker);
+            }
+        }
+        if (markers.size() > 0) {
+            device.waitEvents(markers.toArray(new DeviceEvent[markers.size()]));
+        }
+    }
+
+    private static boolean availableWhole(Device device, Object a) {
+        if (a instanceof float[]) {
+            return device.available((float[]) a);
+        } else if (a instanceof double[]) {
+            return device.available((double[]) a);
+        } else if (a instanceof int[]) {
+            return device.available((int[]) a);
+        } else if (a instanceof byte[]) {
+            return device.available((byte[]) a);
+        } else {
+            return device.available((Buffer) a);
+        }
+    }
+
+    private static void copyWhole(Device device, Object a, Argument.Direction d) {
+        if (a instanceof float[]) {
+            device.copy((float[]) a, d);
+        } else if (a instanceof double[]) {
+            device.copy((double[]) a, d);
+        } else if (a instanceof int[]) {
+            device.copy((int[]) a, d);
+        } else if (a instanceof byte[]) {
+            device.copy((byte[]) a, d);
+        } else {
+            device.copy((Buffer) a, d);
+        }
+    }
+
+    private static void getWhole(Device device, Object a) {
+        if (a instanceof float[]) {
+            device.get((float[]) a);
+        } else if (a instanceof double[]) {
+            device.get((double[]) a);
+        } else if (a instanceof int[]) {
+            device.get((int[]) a);
+        } else if (a instanceof byte[]) {
+            device.get((byte[]) a);
+        } else {
+            device.get((Buffer) a);
+        }
+    }
+
+    private static void cleanWhole(Device device, Object a) {
+        if (a instanceof float[]) {
+            device.clean((float[]) a);
+        } else if (a instanceof double[]) {
+            device.clean((double[]) a);
+        } else if (a instanceof int[]) {
+            device.clean((int[]) a);
+        } else if (a instanceof byte[]) {
+            device.clean((byte[]) a);
+        } else {
+            device.clean((Buffer) a);
+        }
+    }
+}
@@ -22,6 +22,17 @@ package ibis.cashmere.constellation;
  */
 public abstract class KernelLaunch extends Launch {
 
+    // the block size chosen by the autotuner, see launchTuned
+    private Autotuner.Trial trial;
+
+    // the size of the grid, for the performance model of the device
+    private long problemSize;
+
+    // whether the kernel has executed, set by the completion callback of the device
+    private volatile boolean completed = false;
+    // whether the execution time has been given to the performance model and the autotuner
+    private boolean recorded = false;
+
     // A KernelLaunch can only be created from within the package or subclass.
     protected KernelLaunch(String kernelName, String threadName, Device device) {
         super(kernelName, threadName, device);
@@ -66,4 +77,181 @@ public abstract class KernelLaunch extends Launch {
      *            indicates whether the launch should be synchronous or asynchronous
      */
     public abstract void launch(int gridX, int gridY, int gridZ, int blockX, int blockY, int blockZ, boolean synchronous);
+
+    /**
+     * Launch the <code>Kernel</code> over a grid of the specified size with a derived block size. The launch will be a
+     * synchronous launch.
+     *
+     * @param gridX
+     *            the size of the grid in the X direction
+     * @param gridY
+     *            the size of the grid in the Y direction
+     * @param gridZ
+     *            the size of the grid in the Z direction
+     * @see #launch(int, int, int, boolean)
+     */
+    public final void launch(int gridX, int gridY, int gridZ) {
+        launch(gridX, gridY, gridZ, true);
+    }
+
+    /**
+     * Launch the <code>Kernel</code> over a grid of the specified size with a derived block size. If the autotuner chose a
+     * block size for this kernel, device, and size of the grid, that block size is used. Otherwise, the block size is derived
+     * from the limits of the device for this kernel, with the X direction a multiple of the preferred size. The grid is
+     * padded to a multiple of the block size, and the size of the grid is passed to the kernel as three <code>int</code>
+     * arguments following the arguments that were set, so that the kernel can skip the threads in the padding.
+     *
+     * @param gridX
+     *            the size of the grid in the X direction
+     * @param gridY
+     *            the size of the grid in the Y direction
+     * @param gridZ
+     *            the size of the grid in the Z direction
+     * @param synchronous
+     *            indicates whether the launch should be synchronous or asynchronous
+     * @see #launchTuned(int, int, int, boolean, int[][])
+     */
+    public final void launch(int gridX, int gridY, int gridZ, boolean synchronous) {
+        int[] block = device.getAutotuner().getChoice(name, (long) gridX * gridY * gridZ);
+        if (block == null) {
+            block = deriveBlockSize(gridX, gridY, gridZ);
+        }
+        setArgument(gridX, Argument.Direction.IN);
+        setArgument(gridY, Argument.Direction.IN);
+        setArgument(gridZ, Argument.Direction.IN);
+        launch(roundUp(gridX, block[0]), roundUp(gridY, block[1]), roundUp(gridZ, block[2]), block[0], block[1], block[2],
+                synchronous);
+    }
+
+    /**
+     * Launch the <code>Kernel</code> with one of the candidate block sizes. The launch will be a synchronous launch.
+     *
+     * @param gridX
+     *            the size of the grid in the X direction
+     * @param gridY
+     *            the size of the grid in the Y direction
+     * @param gridZ
+     *            the size of the grid in the Z direction
+     * @param candidates
+     *            the candidate block sizes, each as <code>{ blockX, blockY, blockZ }</code>
+     * @see #launchTuned(int, int, int, boolean, int[][])
+     */
+    public final void launchTuned(int gridX, int gridY, int gridZ, int[]... candidates) {
+        launchTuned(gridX, gridY, gridZ, true, candidates);
+    }
+
+    /**
+     * Launch the <code>Kernel</code> with one of the candidate block sizes. Only the candidates that divide the grid are
+     * considered. If a block size was chosen before for this kernel, device, and size of the grid, that block size is used.
+     * Otherwise, if the property <code>cashmere.autotune</code> is set, the first launches try each candidate, after which
+     * the fastest is chosen and stored on disk. Without autotuning, the first candidate that divides the grid is used.
+     *
+     * @param gridX
+     *            the size of the grid in the X direction
+     * @param gridY
+     *            the size of the grid in the Y direction
+     * @param gridZ
+     *            the size of the grid in the Z direction
+     * @param synchronous
+     *            indicates whether the launch should be synchronous or asynchronous
+     * @param candidates
+     *            the candidate block sizes, each as <code>{ blockX, blockY, blockZ }</code>
+     */
+    public final void launchTuned(int gridX, int gridY, int gridZ, boolean synchronous, int[]... candidates) {
+        trial = device.getAutotuner().select(name, gridX, gridY, gridZ, candidates);
+        int[] block = trial.getBlock();
+        launch(gridX, gridY, gridZ, block[0], block[1], block[2], synchronous);
+    }
+
+    // to be called by launch, with the size of the grid
+    protected void setProblemSize(int gridX, int gridY, int gridZ) {
+        problemSize = (long) gridX * gridY * gridZ;
+    }
+
+    // the maximum number of threads in a block for this kernel, the preferred multiple of the block size in the X direction,
+    // and the maximum block size in the X, Y, and Z direction
+    protected abstract int[] getBlockSizeLimits();
+
+    private int[] deriveBlockSize(int gridX, int gridY, int gridZ) {
+        int[] limits = getBlockSizeLimits();
+        int maxThreads = limits[0];
+        int multiple = limits[1];
+
+        // in more dimensions, leave room for the other directions
+        int maxX = gridY > 1 || gridZ > 1 ? Math.max(multiple, 64) : maxThreads;
+        int blockX = Math.min(roundUp(gridX, multiple), Math.min(maxX, Math.min(maxThreads, limits[2])));
+        if (blockX > multiple) {
+            blockX -= blockX % multiple;
+        }
+        int blockY = fitBlockSize(gridY, maxThreads / blockX, limits[3]);
+        int blockZ = fitBlockSize(gridZ, maxThreads / (blockX * blockY), limits[4]);
+        return new int[] { blockX, blockY, blockZ };
+    }
+
+    // the smallest power of two that covers size, as far as max and limit allow
+    private static int fitBlockSize(int size, int max, int limit) {
+        int block = 1;
+        while (block < size && block * 2 <= max && block * 2 <= limit) {
+            block *= 2;
+        }
+        return block;
+    }
+
+    private static int roundUp(int size, int multiple) {
+        return (size + multiple - 1) / multiple * multiple;
+    }
+
+    @Override
+    protected void finish() {
+        if (finished) {
+            return;
+        }
+        super.finish();
+        recordExecution(getExecutionTime());
+    }
+
+    @Override
+    protected void executionCompleted() {
+        completed = true;
+    }
+
+    /*
+     * An asynchronous launch may be cleaned without being finished. Its execution time is recorded if the kernel has
+     * executed, so that the events can still be timed; otherwise its trial is withdrawn, so that the autotuner starts another
+     * launch with its candidate instead of waiting for a result that never comes. Subclasses release their timing resources
+     * after this.
+     */
+    @Override
+    protected void clean() {
+        if (!recorded) {
+            recordExecution(completed ? getExecutionTime() : -1.0);
+        }
+        super.clean();
+    }
+
+    // feed the performance model and the autotuner once per launch, a negative time makes the autotuner try the candidate again
+    private void recordExecution(double time) {
+        recorded = true;
+        if (time >= 0) {
+            Cashmere.addTimeForKernel(name, device, problemSize, time);
+        }
+        if (trial != null) {
+            trial.done(time);
+            trial = null;
+        }
+    }
+
+    // the execution time in seconds of a finished launch, or a negative value if the device cannot time it
+    protected double getExecutionTime() {
+        double time = 0.0;
+        for (DeviceEvent event : executeEvents) {
+            long start = event.getTime(DeviceEvent.TimeType.TIME_START);
+            long end = event.getTime(DeviceEvent.TimeType.TIME_END);
+            if (start == 0 || end <= start) {
+                return -1.0;
+            }
+            time += (end - start) / 1e9;
+        }
+        return time;
+    }
 }
@@ -35,6 +35,29 @@ import ibis.cashmere.constellation.Argument;
  */
 public abstract class Launch {
 
+    /**
+     * The <code>Priority</code> of a launch. When the number of launches in flight on a device is bounded with the property
+     * <code>cashmere.maxInFlight</code>, waiting launches are admitted to the device in the order of their priority; the same
+     * holds for the launches that wait in the queue of a device after {@link Cashmere#submit Cashmere.submit}. A launch that
+     * has waited longer than <code>cashmere.priority.maxWait</code> milliseconds (500 by default) goes first, so that launches
+     * with a low priority are not starved. On CUDA devices, launches with priority <code>HIGH</code> execute on a stream with
+     * the greatest stream priority of the device.
+     */
+    public static enum Priority {
+        /**
+         * For latency-critical launches.
+         */
+        HIGH,
+        /**
+         * The priority of a launch unless set otherwise.
+         */
+        NORMAL,
+        /**
+         * For bulk launches that can wait.
+         */
+        LOW,
+    };
+
     protected static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.Launch");
 
     protected String name;
@@ -55,6 +78,20 @@ public abstract class Launch {
     protected boolean launched;
     protected boolean finished;
 
+    private Priority priority = Priority.NORMAL;
+
+    // whether this launch holds a slot on the device and is counted as submitted, from the start of its execution until its
+    // kernel is enqueued
+    private boolean submitted;
+    // whether the kernel of this launch has been enqueued, after which its completion releases its slot on the device
+    private boolean executing;
+    // the number of bytes of the arrays transferred for this launch
+    private long bytes;
+    // the graph this launch is part of, or null
+    private KernelGraph graph;
+    // whether this launch still pins its kernel on the device, see Device.pinKernel
+    private boolean pinned;
+
     private static final int NR_LAUNCHES_TO_RETAIN = 2;
 
     private Set<float[]> noCopyFloats;
@@ -92,11 +129,49 @@ public abstract class Launch {
         this.noCopyBytes = new HashSet<byte[]>();
         this.noCopyBuffers = new HashSet<Buffer>();
         this.noCopyPointers = Collections.newSetFromMap(new IdentityHashMap<Pointer, Boolean>());
+
+        device.pinKernel(name);
+        this.pinned = true;
     }
 
     /*
      * Public code, generic to Kernel and LibFunc launches
      */
+    /**
+     * Set the priority of this launch. The priority should be set before the launch.
+     *
+     * @param priority
+     *            the priority of this launch
+     */
+    public void setPriority(Priority priority) {
+        if (submitted || executing || launched) {
+            throw new Error("The priority of a launch should be set before it is launched");
+        }
+        this.priority = priority;
+        this.executeQueue = device.getExecuteQueue(priority);
+    }
+
+    /**
+     * Get the priority of this launch.
+     *
+     * @return the priority of this launch
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Cancel this launch if it has not been launched, which releases the device copies of its arguments and its hold on the
+     * kernel. A program that sets the arguments of a launch and then does not launch it should cancel it, for example when
+     * the MCL code throws {@link CashmereNotAvailable} for an unknown device and the program falls back to the host.
+     * Cancelling a launch that has been launched has no effect.
+     */
+    public void cancel() {
+        if (!executing) {
+            clean();
+        }
+    }
+
     /**
      * Set an argument for this launch. The value will be copied to the device before the kernel launches.
      *
@@ -149,6 +224,7 @@ public abstract class Launch {
      */
     public void setArgument(float[][] a, Argument.Direction d) {
         FloatArray2DArgument arg = new FloatArray2DArgument(device, writeQueue, readQueue, writeBufferEvents, a, d);
+        addBytes(arg);
         setArgument(Platform.MEM_SIZE, arg);
         argsToClean.add(arg);
     }
@@ -162,7 +238,13 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgument(float[] a, Argument.Direction d) {
+        if (graph != null) {
+            // the graph keeps the arrays on the device
+            setArgumentNoCopy(a, d);
+            return;
+        }
         FloatArrayArgument arg = new FloatArrayArgument(device, writeQueue, readQueue, writeBufferEvents, a, d);
+        addBytes(arg);
         setArgument(Platform.MEM_SIZE, arg);
         argsToClean.add(arg);
     }
@@ -176,7 +258,13 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgument(double[] a, Argument.Direction d) {
+        if (graph != null) {
+            // the graph keeps the arrays on the device
+            setArgumentNoCopy(a, d);
+            return;
+        }
         DoubleArrayArgument arg = new DoubleArrayArgument(device, writeQueue, readQueue, writeBufferEvents, a, d);
+        addBytes(arg);
         setArgument(Platform.MEM_SIZE, arg);
         argsToClean.add(arg);
     }
@@ -190,7 +278,13 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgument(Buffer buffer, Argument.Direction d) {
+        if (graph != null) {
+            // the graph keeps the arrays on the device
+            setArgumentNoCopy(buffer, d);
+            return;
+        }
         BufferArgument arg = new BufferArgument(device, writeQueue, readQueue, writeBufferEvents, buffer, d);
+        addBytes(arg);
         setArgument(Platform.MEM_SIZE, arg);
         argsToClean.add(arg);
     }
@@ -218,7 +312,13 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgument(int[] a, Argument.Direction d) {
+        if (graph != null) {
+            // the graph keeps the arrays on the device
+            setArgumentNoCopy(a, d);
+            return;
+        }
         IntArrayArgument arg = new IntArrayArgument(device, writeQueue, readQueue, writeBufferEvents, a, d);
+        addBytes(arg);
         setArgument(Platform.MEM_SIZE, arg);
         argsToClean.add(arg);
     }
@@ -232,7 +332,13 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgument(byte[] a, Argument.Direction d) {
+        if (graph != null) {
+            // the graph keeps the arrays on the device
+            setArgumentNoCopy(a, d);
+            return;
+        }
         ByteArrayArgument arg = new ByteArrayArgument(device, writeQueue, readQueue, writeBufferEvents, a, d);
+        addBytes(arg);
         setArgument(Platform.MEM_SIZE, arg);
         argsToClean.add(arg);
     }
@@ -247,6 +353,9 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgumentNoCopy(float[] a, Argument.Direction d) {
+        if (graph != null) {
+            graph.use(this, a, d);
+        }
         FloatArrayArgument arg = device.getArgument(a);
         setArgument(Platform.MEM_SIZE, arg);
 
@@ -265,6 +374,9 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgumentNoCopy(double[] a, Argument.Direction d) {
+        if (graph != null) {
+            graph.use(this, a, d);
+        }
         DoubleArrayArgument arg = device.getArgument(a);
         setArgument(Platform.MEM_SIZE, arg);
 
@@ -283,6 +395,9 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgumentNoCopy(Buffer a, Argument.Direction d) {
+        if (graph != null) {
+            graph.use(this, a, d);
+        }
         BufferArgument arg = device.getArgument(a);
         setArgument(Platform.MEM_SIZE, arg);
 
@@ -301,6 +416,9 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgumentNoCopy(Pointer a, Argument.Direction d) {
+        if (graph != null) {
+            graph.use(this, a, d);
+        }
         PointerArgument arg = device.getArgument(a);
         setArgument(Platform.MEM_SIZE, arg);
 
@@ -319,6 +437,9 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgumentNoCopy(int[] a, Argument.Direction d) {
+        if (graph != null) {
+            graph.use(this, a, d);
+        }
         IntArrayArgument arg = device.getArgument(a);
         setArgument(Platform.MEM_SIZE, arg);
 
@@ -337,6 +458,9 @@ public abstract class Launch {
      *            indicates whether the value is only read, only written, or both
      */
     public void setArgumentNoCopy(byte[] a, Argument.Direction d) {
+        if (graph != null) {
+            graph.use(this, a, d);
+        }
         ByteArrayArgument arg = device.getArgument(a);
         setArgument(Platform.MEM_SIZE, arg);
 
@@ -362,6 +486,10 @@ public abstract class Launch {
         return threadName;
     }
 
+    void setGraph(KernelGraph graph) {
+        this.graph = graph;
+    }
+
     /*
      * Methods for subclasses
      */
@@ -387,7 +515,47 @@ public abstract class Launch {
         }
     }
 
+    // called before the kernel is enqueued, blocks while the device has no slot for this launch
+    protected void startExecution() {
+        if (!submitted) {
+            device.launchSubmitted(priority, bytes);
+            submitted = true;
+        }
+        if (graph != null) {
+            executeQueue = graph.beforeLaunch(this);
+        }
+    }
+
+    // called after the kernel is enqueued, the launch is completed when event completes
+    protected void completeExecution(DeviceEvent event) {
+        if (graph != null) {
+            graph.afterLaunch(this);
+        }
+        // from here on the completion callback releases the slot
+        device.launchExecuting();
+        submitted = false;
+        executing = true;
+        long transferred = bytes;
+        Priority p = priority;
+        device.whenComplete(executeQueue, event, () -> {
+            device.launchCompleted(p, transferred);
+            executionCompleted();
+        });
+    }
+
+    // called from the completion callback of the device when the kernel has executed
+    protected void executionCompleted() {
+    }
+
+    // whether this launch is part of a KernelGraph, which finishes and cleans it
+    protected boolean inGraph() {
+        return graph != null;
+    }
+
     protected void registerWithThread() {
+        if (graph != null) {
+            return;
+        }
         // register this launch with the thread. The thread will
         // clean all launch up to NR_LAUNCHES_TO_RETAIN to make sure all
         // the execute events are gone.
@@ -397,12 +565,19 @@ public abstract class Launch {
     }
 
     protected void clean() {
+        if (!executing) {
+            abandon();
+        }
         removeExecuteEventsFromDevice(executeEvents);
         clean("execute", executeEvents);
         device.cleanWriteEvents(writeBufferEvents);
         clean("writeBuffer", writeBufferEvents);
         clean("readBuffer", readBufferEvents);
         clearNoCopies();
+        if (pinned) {
+            pinned = false;
+            device.unpinKernel(name);
+        }
     }
 
     protected void finish() {
@@ -421,7 +596,6 @@ public abstract class Launch {
                 }
 
                 finished = true;
-                device.setNotBusy();
             } else {
                 throw new Error("launch not called yet");
             }
@@ -434,6 +608,26 @@ public abstract class Launch {
      * Methods with private access
      */
 
+    // release the arguments of a launch that never executed, and its slot if it got one, for example because setting its
+    // arguments failed or enqueueing its kernel failed; no completion callback exists for such a launch
+    private void abandon() {
+        if (submitted) {
+            submitted = false;
+            device.launchAbandoned(bytes);
+        }
+        if (writeBufferEvents.size() > 0) {
+            device.waitEvents(writeBufferEvents.toArray(new DeviceEvent[writeBufferEvents.size()]));
+        }
+        for (Argument a : argsToClean) {
+            a.clean();
+        }
+        argsToClean.clear();
+    }
+
+    private void addBytes(Argument arg) {
+        bytes += arg.getSize();
+    }
+
     private static void cleanLaunches(int nrLaunchesToRetain) {
         int nrLaunchesToClean = Math.max(launches.get().size() - nrLaunchesToRetain, 0);
         logger.debug("cleanLaunches: nrLaunchesToClean = " + nrLaunchesToClean);
@@ -522,19 +716,6 @@ public abstract class Launch {
         return exevnts;
     }
 
-    private void addExecuteEventToTimer(DeviceEvent event) {
-        long start = event.getTime(DeviceEvent.TimeType.TIME_START);
-        long end = event.getTime(DeviceEvent.TimeType.TIME_END);
-        if (start != 0 && end > start) {
-            // Sometimes, end == 0 or start == 0. Don't know why.
-            double time = (end - start) / 1e9;
-            Cashmere.addTimeForKernel(name, device, time);
-        }
-        if (logger.isDebugEnabled()) {
-            logger.debug("finish: timer stuff done");
-        }
-    }
-
     private void cleanAsynchronousArguments() {
         for (Argument a : argsToClean) {
             if (!a.readScheduled()) {
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+/**
+ * Represents the arguments and the launch of a kernel that is submitted with {@link Cashmere#submit Cashmere.submit}. It is
+ * called with a {@link KernelLaunch} on the <code>Device</code> that executes it, typically to call a generated
+ * <code>MCL.launch</code> method.
+ */
+@FunctionalInterface
+public interface LaunchBody {
+
+    /**
+     * Sets the arguments of <code>launch</code> and launches it.
+     *
+     * @param launch
+     *            the <code>KernelLaunch</code> on the <code>Device</code> that executes this body
+     * @exception CashmereNotAvailable
+     *                if the kernel cannot be launched on the device
+     */
+    public void launch(KernelLaunch launch) throws CashmereNotAvailable;
+}
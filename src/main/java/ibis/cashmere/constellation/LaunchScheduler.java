@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ibis.cashmere.constellation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.util.TypedProperties;
+
+/*
+ * Executes the launches submitted with Cashmere.submit. Every device has a queue of launches that are not bound to it yet, and
+ * worker threads that take launches from that queue in the order of PriorityOrder. A worker of a device with an empty queue
+ * steals from the tail of the queues of the other devices, longest queue first, provided the kernel is available on its device
+ * and stealing does not cost much transfer: either the thief has at least as much of the arguments on the device as the victim,
+ * or transferring the rest is expected to take at most cashmere.steal.maxTransferTime seconds. A thief whose transfers are not
+ * calibrated yet has no expected time, so it only steals launches of which it holds enough of the arguments. Whether a launch is
+ * cheap to move is decided outside the monitor of the scheduler, because it looks up the arguments on both devices.
+ */
+class LaunchScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.Cashmere/scheduler");
+
+    private static class Task {
+        private final String name;
+        private final LaunchBody body;
+        private final Object[] arguments;
+        private final Launch.Priority priority;
+        private final long since = System.nanoTime();
+        private final CompletableFuture<Device> result = new CompletableFuture<Device>();
+
+        Task(String name, LaunchBody body, Object[] arguments, Launch.Priority priority) {
+            this.name = name;
+            this.body = body;
+            this.arguments = arguments;
+            this.priority = priority;
+        }
+    }
+
+    private final Map<Device, Deque<Task>> queues = new HashMap<Device, Deque<Task>>();
+    private final double maxTransferTime;
+    private final PriorityOrder priorityOrder;
+    // the number of submitted tasks, so that a thief notices the tasks submitted while it looked for a task to steal
+    private long nrSubmitted;
+
+    LaunchScheduler(List<Device> devices, TypedProperties props) {
+        this.priorityOrder = new PriorityOrder(props);
+        this.maxTransferTime = props.getDoubleProperty("cashmere.steal.maxTransferTime", 0.001);
+        int nrWorkers = props.getIntProperty("cashmere.steal.workersPerDevice", 1);
+        for (Device device : devices) {
+            queues.put(device, new ArrayDeque<Task>());
+        }
+        for (Device device : devices) {
+            for (int i = 0; i < nrWorkers; i++) {
+                Thread t = new Thread(() -> work(device), "Cashmere launcher " + device.getNickName() + "-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    synchronized CompletableFuture<Device> submit(Device device, String name, LaunchBody body, Object[] arguments,
+            Launch.Priority priority) {
+        Task task = new Task(name, body, arguments, priority);
+        queues.get(device).addLast(task);
+        device.launchQueued(priority);
+        nrSubmitted++;
+        notifyAll();
+        return task.result;
+    }
+
+    private void work(Device device) {
+        while (true) {
+            Task task;
+            try {
+                task = take(device);
+            } catch (InterruptedException e) {
+                return;
+            }
+            KernelLaunch launch = null;
+            try {
+                Kernel kernel = Cashmere.getKernel(task.name, device);
+                launch = kernel.createLaunch();
+                launch.setPriority(task.priority);
+                task.body.launch(launch);
+                task.result.complete(device);
+            } catch (Throwable e) {
+                if (launch != null) {
+                    // release the arguments and the kernel of a launch that the body did not launch
+                    try {
+                        launch.cancel();
+                    } catch (Throwable t) {
+                        logger.warn("Could not clean a launch of " + task.name, t);
+                    }
+                }
+                task.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private Task take(Device device) throws InterruptedException {
+        while (true) {
+            Map<Device, List<Task>> victims;
+            long submitted;
+            synchronized (this) {
+                Task task = next(queues.get(device));
+                if (task != null) {
+                    device.launchDequeued(task.priority, System.nanoTime() - task.since);
+                    return task;
+                }
+                victims = victims(device);
+                if (victims.isEmpty()) {
+                    wait();
+                    continue;
+                }
+                submitted = nrSubmitted;
+            }
+
+            boolean lost = false;
+            for (Map.Entry<Device, List<Task>> e : victims.entrySet()) {
+                Device victim = e.getKey();
+                Task stolen = steal(device, victim, e.getValue());
+                if (stolen == null) {
+                    continue;
+                }
+                synchronized (this) {
+                    if (queues.get(victim).remove(stolen)) {
+                        victim.launchDequeued(stolen.priority, System.nanoTime() - stolen.since);
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("{} stole a launch of {} from {}", device, stolen.name, victim);
+                        }
+                        return stolen;
+                    }
+                }
+                // the victim took the launch in the meantime, so its queue has changed
+                lost = true;
+                break;
+            }
+
+            synchronized (this) {
+                if (!lost && submitted == nrSubmitted) {
+                    wait();
+                }
+            }
+        }
+    }
+
+    private Task next(Deque<Task> queue) {
+        long now = System.nanoTime();
+        Task next = null;
+        for (Task task : queue) {
+            if (next == null || priorityOrder.before(task.priority, task.since, next.priority, next.since, now)) {
+                next = task;
+            }
+        }
+        if (next != null) {
+            queue.remove(next);
+        }
+        return next;
+    }
+
+    // the devices other than thief with a non-empty queue, longest queue first, each with its queue from the tail
+    private Map<Device, List<Task>> victims(Device thief) {
+        List<Device> devices = new ArrayList<Device>();
+        for (Map.Entry<Device, Deque<Task>> e : queues.entrySet()) {
+            if (e.getKey() != thief && !e.getValue().isEmpty()) {
+                devices.add(e.getKey());
+            }
+        }
+        devices.sort((a, b) -> Integer.compare(queues.get(b).size(), queues.get(a).size()));
+
+        Map<Device, List<Task>> victims = new LinkedHashMap<Device, List<Task>>();
+        for (Device victim : devices) {
+            List<Task> candidates = new ArrayList<Task>();
+            for (Iterator<Task> i = queues.get(victim).descendingIterator(); i.hasNext();) {
+                candidates.add(i.next());
+            }
+            victims.put(victim, candidates);
+        }
+        return victims;
+    }
+
+    // the first of the candidates, from the tail of the queue of victim, that thief can execute; called without the monitor
+    private Task steal(Device thief, Device victim, List<Task> candidates) {
+        for (Task task : candidates) {
+            if (thief.hasKernel(task.name) && thief.canAccess(task.arguments) && cheapToMove(task, thief, victim)) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private boolean cheapToMove(Task task, Device thief, Device victim) {
+        long bytes = thief.getNonResidentBytes(task.arguments);
+        if (bytes <= victim.getNonResidentBytes(task.arguments)) {
+            return true;
+        }
+        // an expected time of 0 means that the transfers of the thief are not calibrated yet
+        double time = thief.getTransferPlanner().expectedTime(Argument.Direction.IN, bytes);
+        return time > 0 && time <= maxTransferTime;
+    }
+}
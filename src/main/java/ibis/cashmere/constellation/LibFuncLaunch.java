@@ -46,7 +46,7 @@ public class LibFuncLaunch extends Launch {
      *            represents the functionality to launch the library function.
      */
     public void launch(boolean synchronous, LaunchFunction launchFunction) {
-        device.launched();
+        startExecution();
         final DeviceEvent[] wbeArray = writeBufferEvents.toArray(new DeviceEvent[writeBufferEvents.size()]);
 
         DeviceEvent.retainEvents(wbeArray);
@@ -58,9 +58,10 @@ public class LibFuncLaunch extends Launch {
         executeEvents.add(event);
 
         registerExecuteEventToDevice(event);
+        completeExecution(event);
 
         launched = true;
-        if (synchronous) {
+        if (synchronous && !inGraph()) {
             finish();
         }
         registerWithThread();
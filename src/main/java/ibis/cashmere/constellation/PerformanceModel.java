@@ -0,0 +1,238 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.util.TypedProperties;
+
+/*
+ * The execution times of the kernels on a device, as an exponentially weighted moving mean and variance that is updated with
+ * the profiled time of every launch. The weight of a new time is cashmere.model.alpha. Next to that, the execution time is
+ * regressed on the problem size (the size of the grid) with exponentially decaying weights, so that the time of a launch of a
+ * given size can be predicted. The models are stored on disk in cashmere.model.dir, so that a next run on the same kind of
+ * device starts with them.
+ *
+ * The launch selection reads the models for every launch, so reads do not take a lock: an update replaces the estimate of the
+ * kernel in a copy of the map and publishes the copy. Updates are serialized by the monitor of the model, and the file is
+ * written outside it.
+ */
+class PerformanceModel {
+
+    private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.Device/model");
+
+    // the number of updates after which the models are stored
+    private static final int SAVE_INTERVAL = 100;
+
+    // the decay of the weights of the regression, which remembers more samples than the mean
+    private static final double REGRESSION_DECAY = 0.05;
+
+    private final Device device;
+    private final double alpha;
+    private final File modelFile;
+
+    // per kernel the estimate of the execution time, never modified after it is published
+    private volatile Map<String, Estimate> estimates = Collections.emptyMap();
+    // guarded by the monitor of the model
+    private int nrUnsaved;
+    // serializes the writes of the file
+    private final Object saveLock = new Object();
+
+    // The estimate of the execution time of a kernel, which is immutable.
+    private static class Estimate {
+        // the mean and variance of the execution time in seconds, and the number of samples
+        private final double mean;
+        private final double variance;
+        private final long count;
+        // the weighted sums of the regression: weights, sizes, times, squared sizes, and sizes times times, or null
+        private final double[] sums;
+
+        private Estimate(double mean, double variance, long count, double[] sums) {
+            this.mean = mean;
+            this.variance = variance;
+            this.count = count;
+            this.sums = sums;
+        }
+    }
+
+    PerformanceModel(Device device, TypedProperties props) {
+        this.device = device;
+        this.alpha = props.getDoubleProperty("cashmere.model.alpha", 0.2);
+        String dir = props.getProperty("cashmere.model.dir", System.getProperty("user.home") + File.separator + ".cashmere");
+        this.modelFile = new File(dir, "model-" + device.getNickName() + ".properties");
+        load();
+    }
+
+    void add(String kernel, long problemSize, double time) {
+        boolean save;
+        synchronized (this) {
+            Estimate old = estimates.get(key(kernel));
+            double[] sums = old == null ? null : old.sums;
+            if (problemSize > 0) {
+                sums = sums == null ? new double[5] : sums.clone();
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] *= 1 - REGRESSION_DECAY;
+                }
+                double size = problemSize;
+                sums[0] += 1;
+                sums[1] += size;
+                sums[2] += time;
+                sums[3] += size * size;
+                sums[4] += size * time;
+            }
+            Estimate estimate;
+            if (old == null) {
+                estimate = new Estimate(time, 0.0, 1, sums);
+            } else {
+                double diff = time - old.mean;
+                double increment = alpha * diff;
+                double variance = (1 - alpha) * (old.variance + diff * increment);
+                estimate = new Estimate(old.mean + increment, variance, old.count + 1, sums);
+            }
+            Map<String, Estimate> copy = new HashMap<String, Estimate>(estimates);
+            copy.put(key(kernel), estimate);
+            estimates = copy;
+            save = ++nrUnsaved >= SAVE_INTERVAL;
+        }
+        if (save) {
+            save();
+        }
+    }
+
+    boolean hasEstimate(String kernel) {
+        return estimates.containsKey(key(kernel));
+    }
+
+    // the expected execution time in seconds, or 0 if there are no measurements
+    double getMean(String kernel) {
+        Estimate estimate = estimates.get(key(kernel));
+        return estimate == null ? 0.0 : estimate.mean;
+    }
+
+    // the expected execution time in seconds of a launch with the given problem size, or the mean if the size is unknown or
+    // the sizes measured so far do not vary enough
+    double predict(String kernel, long problemSize) {
+        Estimate estimate = estimates.get(key(kernel));
+        if (estimate == null) {
+            return 0.0;
+        }
+        double[] sums = estimate.sums;
+        if (problemSize <= 0 || sums == null) {
+            return estimate.mean;
+        }
+        double weight = sums[0];
+        double meanSize = sums[1] / weight;
+        double varianceSize = sums[3] / weight - meanSize * meanSize;
+        if (varianceSize <= 1e-6 * meanSize * meanSize) {
+            return estimate.mean;
+        }
+        double slope = (sums[4] / weight - meanSize * sums[2] / weight) / varianceSize;
+        double intercept = sums[2] / weight - slope * meanSize;
+        double time = intercept + Math.max(slope, 0.0) * problemSize;
+        return time > 0 ? time : estimate.mean;
+    }
+
+    double getVariance(String kernel) {
+        Estimate estimate = estimates.get(key(kernel));
+        return estimate == null ? 0.0 : estimate.variance;
+    }
+
+    void save() {
+        synchronized (this) {
+            if (nrUnsaved == 0) {
+                return;
+            }
+            nrUnsaved = 0;
+        }
+        // the snapshot is read under the lock of the file, so that a write never overwrites a newer snapshot
+        synchronized (saveLock) {
+            Properties p = new Properties();
+            for (Map.Entry<String, Estimate> e : estimates.entrySet()) {
+                Estimate estimate = e.getValue();
+                p.setProperty(e.getKey() + ".mean", Double.toString(estimate.mean));
+                p.setProperty(e.getKey() + ".variance", Double.toString(estimate.variance));
+                double[] sums = estimate.sums;
+                if (sums != null) {
+                    p.setProperty(e.getKey() + ".regression",
+                            sums[0] + "," + sums[1] + "," + sums[2] + "," + sums[3] + "," + sums[4]);
+                }
+            }
+            modelFile.getParentFile().mkdirs();
+            try (OutputStream out = new FileOutputStream(modelFile)) {
+                p.store(out, "Cashmere kernel execution times for " + device.getNickName());
+            } catch (IOException e) {
+                logger.warn("Could not write kernel execution times " + modelFile, e);
+            }
+        }
+    }
+
+    private static String key(String kernel) {
+        return kernel == null ? "__DEFAULT__" : kernel;
+    }
+
+    private void load() {
+        if (!modelFile.exists()) {
+            return;
+        }
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(modelFile)) {
+            p.load(in);
+        } catch (IOException e) {
+            logger.warn("Could not read kernel execution times " + modelFile, e);
+            return;
+        }
+        Map<String, Estimate> loaded = new HashMap<String, Estimate>();
+        for (String name : p.stringPropertyNames()) {
+            if (name.endsWith(".mean")) {
+                String kernel = name.substring(0, name.length() - ".mean".length());
+                String variance = p.getProperty(kernel + ".variance", "0");
+                loaded.put(kernel, new Estimate(Double.parseDouble(p.getProperty(name)), Double.parseDouble(variance), 0,
+                        loadRegression(p.getProperty(kernel + ".regression"))));
+            }
+        }
+        estimates = loaded;
+        logger.info("{}: loaded kernel execution times from {}", device, modelFile);
+    }
+
+    private static double[] loadRegression(String property) {
+        if (property == null) {
+            return null;
+        }
+        String[] values = property.split(",");
+        if (values.length != 5) {
+            return null;
+        }
+        double[] sums = new double[5];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = Double.parseDouble(values[i]);
+        }
+        return sums;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ibis.cashmere.constellation;
+
+import ibis.util.TypedProperties;
+
+/*
+ * The order in which waiting launches are served: by priority, and by arrival within a priority. A launch that has waited
+ * longer than the property cashmere.priority.maxWait (in milliseconds, 500 by default) goes before all launches that have
+ * not, so that a steady stream of launches with a high priority cannot starve launches with a low priority.
+ */
+class PriorityOrder {
+
+    private final long maxWait;
+
+    PriorityOrder(TypedProperties properties) {
+        this.maxWait = properties.getLongProperty("cashmere.priority.maxWait", 500) * 1000000L;
+    }
+
+    // whether a launch with priority a that arrived at time sinceA goes before one with priority b that arrived at sinceB
+    boolean before(Launch.Priority a, long sinceA, Launch.Priority b, long sinceB, long now) {
+        int rankA = now - sinceA > maxWait ? -1 : a.ordinal();
+        int rankB = now - sinceB > maxWait ? -1 : b.ordinal();
+        return rankA != rankB ? rankA < rankB : sinceA < sinceB;
+    }
+}
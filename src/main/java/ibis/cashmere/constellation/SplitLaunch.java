@@ -0,0 +1,265 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ibis.cashmere.constellation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A launch of a data-parallel {@link Kernel} of which the index space is split between the {@link Device} of the kernel and the
+ * cores of the host. The device executes the indices <code>[0, split)</code> with a {@link DevicePart}, while a pool of host
+ * threads executes the indices <code>[split, n)</code> with a {@link HostPart}, typically the Java fallback of the kernel. Both
+ * parts write their results into disjoint ranges of the same host arrays, so the results are merged when {@link #launch} returns.
+ * A device part that uses whole-array arguments, such as a generated <code>MCL.launch</code> method, should therefore launch on
+ * copies of its range, for example obtained with <code>Arrays.copyOfRange</code>, and copy the results back into its range.
+ * <p>
+ * The split is chosen from the measured throughput of the device and the host for this kernel on this device: after each launch
+ * the fraction of indices for the device is moved towards the ratio of the device throughput to the total throughput, with a
+ * smoothing factor from the property <code>cashmere.split.alpha</code> (0.3 by default). The first launch uses the fraction in
+ * <code>cashmere.split.deviceFraction</code> (0.9 by default). The property <code>cashmere.split.hostThreads</code> sets the
+ * number of host threads, by default the number of available processors minus one. Both parts always receive at least a fraction
+ * <code>cashmere.split.minFraction</code> (0.01 by default) of the indices, and the device at least one granule, so that their
+ * throughput remains measured.
+ */
+public class SplitLaunch {
+
+    /**
+     * The part of a <code>SplitLaunch</code> that executes on the device.
+     */
+    @FunctionalInterface
+    public static interface DevicePart {
+
+        /**
+         * Executes the indices <code>[start, end)</code> on the device of <code>launch</code>. This method returns when the
+         * results are in the host arrays.
+         *
+         * @param launch
+         *            the <code>KernelLaunch</code> to use
+         * @param start
+         *            the first index
+         * @param end
+         *            the index after the last index
+         * @exception CashmereNotAvailable
+         *                if the kernel cannot be launched on the device
+         */
+        public void launch(KernelLaunch launch, int start, int end) throws CashmereNotAvailable;
+    }
+
+    /**
+     * The part of a <code>SplitLaunch</code> that executes on the host.
+     */
+    @FunctionalInterface
+    public static interface HostPart {
+
+        /**
+         * Executes the indices <code>[start, end)</code> on the host. This method is called concurrently for disjoint ranges.
+         *
+         * @param start
+         *            the first index
+         * @param end
+         *            the index after the last index
+         */
+        public void compute(int start, int end);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.SplitLaunch");
+
+    // the fraction of the indices executed by the device, per kernel and device
+    private static final Map<String, Double> fractions = new ConcurrentHashMap<String, Double>();
+
+    private static ExecutorService hostThreads;
+    private static int nrHostThreads;
+
+    private final Kernel kernel;
+    private final int nrIndices;
+
+    private int granularity = 1;
+    private boolean launched = false;
+
+    // A SplitLaunch can only be created from a Kernel
+    SplitLaunch(Kernel kernel, int nrIndices) {
+        if (nrIndices <= 0) {
+            throw new Error("Invalid number of indices: " + nrIndices);
+        }
+        this.kernel = kernel;
+        this.nrIndices = nrIndices;
+    }
+
+    /*
+     * Public methods
+     */
+
+    /**
+     * Set the granularity of the split. The number of indices executed by the device is a multiple of the granularity, for
+     * example the block size of the kernel.
+     *
+     * @param granularity
+     *            the granularity of the split
+     */
+    public void setGranularity(int granularity) {
+        if (granularity <= 0) {
+            throw new Error("Invalid granularity: " + granularity);
+        }
+        this.granularity = granularity;
+    }
+
+    /**
+     * Returns the fraction of the indices that the next <code>SplitLaunch</code> of this kernel executes on its device.
+     *
+     * @return the fraction of the indices for the device
+     */
+    public double getDeviceFraction() {
+        Double f = fractions.get(key());
+        return f == null ? getDoubleProperty("cashmere.split.deviceFraction", 0.9) : f;
+    }
+
+    /**
+     * Launch the kernel over the complete index space, split between the device and the host. This method returns when both
+     * parts have finished.
+     *
+     * @param devicePart
+     *            executes a range of indices on the device
+     * @param hostPart
+     *            executes a range of indices on the host
+     * @exception CashmereNotAvailable
+     *                if the kernel cannot be launched on the device
+     */
+    public void launch(DevicePart devicePart, HostPart hostPart) throws CashmereNotAvailable {
+        if (launched) {
+            throw new Error("SplitLaunch can only be launched once");
+        }
+        launched = true;
+
+        ExecutorService pool = getHostThreads();
+        int split = pool == null ? nrIndices : computeSplit();
+        if (logger.isDebugEnabled()) {
+            logger.debug("{}: {} of {} indices on {}, the rest on {} host threads", kernel.getName(), split, nrIndices,
+                    kernel.getDevice(), Math.max(0, nrHostThreads));
+        }
+
+        long start = System.nanoTime();
+        List<Future<?>> hostTasks = new ArrayList<Future<?>>();
+        long[] hostEnd = new long[1];
+        if (split < nrIndices) {
+            int chunk = (nrIndices - split + nrHostThreads - 1) / nrHostThreads;
+            for (int s = split; s < nrIndices; s += chunk) {
+                int from = s;
+                int to = Math.min(nrIndices, s + chunk);
+                hostTasks.add(pool.submit(() -> {
+                    hostPart.compute(from, to);
+                    synchronized (hostEnd) {
+                        hostEnd[0] = Math.max(hostEnd[0], System.nanoTime());
+                    }
+                }));
+            }
+        }
+
+        long deviceEnd = start;
+        try {
+            if (split > 0) {
+                KernelLaunch launch = kernel.createLaunch();
+                try {
+                    devicePart.launch(launch, 0, split);
+                } catch (CashmereNotAvailable | RuntimeException | Error e) {
+                    launch.cancel();
+                    throw e;
+                }
+                deviceEnd = System.nanoTime();
+            }
+        } finally {
+            for (Future<?> f : hostTasks) {
+                waitFor(f);
+            }
+        }
+
+        if (split > 0 && split < nrIndices) {
+            update(split, deviceEnd - start, hostEnd[0] - start);
+        }
+    }
+
+    /*
+     * Private methods
+     */
+
+    private String key() {
+        return kernel.getName() + "@" + kernel.getDevice();
+    }
+
+    private int computeSplit() {
+        double minFraction = getDoubleProperty("cashmere.split.minFraction", 0.01);
+        double fraction = Math.max(minFraction, Math.min(1.0 - minFraction, getDeviceFraction()));
+        int split = (int) (nrIndices * fraction) / granularity * granularity;
+        if (split == 0 && minFraction > 0) {
+            // at least one granule, so that the throughput of the device remains measured
+            split = granularity;
+        }
+        return Math.max(0, Math.min(nrIndices, split));
+    }
+
+    private void update(int split, long deviceTime, long hostTime) {
+        double deviceThroughput = split / (double) Math.max(1, deviceTime);
+        double hostThroughput = (nrIndices - split) / (double) Math.max(1, hostTime);
+        double target = deviceThroughput / (deviceThroughput + hostThroughput);
+        double alpha = getDoubleProperty("cashmere.split.alpha", 0.3);
+        double fraction = (1.0 - alpha) * getDeviceFraction() + alpha * target;
+        fractions.put(key(), fraction);
+        if (logger.isDebugEnabled()) {
+            logger.debug("{}: device {} ns, host {} ns, device fraction now {}", key(), deviceTime, hostTime, fraction);
+        }
+    }
+
+    private static void waitFor(Future<?> f) {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("Interrupted while waiting for the host part of a SplitLaunch", e);
+        } catch (ExecutionException e) {
+            throw new Error("The host part of a SplitLaunch failed", e.getCause());
+        }
+    }
+
+    private static synchronized ExecutorService getHostThreads() {
+        if (hostThreads == null && nrHostThreads == 0) {
+            int defaultThreads = Math.max(0, Runtime.getRuntime().availableProcessors() - 1);
+            nrHostThreads = Cashmere.cashmere.getProperties().getIntProperty("cashmere.split.hostThreads", defaultThreads);
+            if (nrHostThreads <= 0) {
+                nrHostThreads = -1;
+                return null;
+            }
+            hostThreads = Executors.newFixedThreadPool(nrHostThreads, r -> {
+                Thread t = new Thread(r, "Cashmere split host thread");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return hostThreads;
+    }
+
+    private static double getDoubleProperty(String name, double defaultValue) {
+        return Cashmere.cashmere.getProperties().getDoubleProperty(name, defaultValue);
+    }
+}
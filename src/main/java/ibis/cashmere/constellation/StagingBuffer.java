@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A page-locked host buffer that is used to stage transfers between the host and a {@link Device}. Instances are allocated by a
+ * {@link Device} implementation and are recycled by the <code>Device</code>.
+ */
+public abstract class StagingBuffer {
+
+    private final ByteBuffer byteBuffer;
+
+    // A StagingBuffer can only be created from a subclass
+    protected StagingBuffer(ByteBuffer byteBuffer) {
+        this.byteBuffer = byteBuffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Returns the capacity of this staging buffer.
+     *
+     * @return the capacity in bytes
+     */
+    public long capacity() {
+        return byteBuffer.capacity();
+    }
+
+    /**
+     * Returns the host memory of this staging buffer.
+     *
+     * @return the {@link ByteBuffer} of this staging buffer
+     */
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    /**
+     * Copy <code>size</code> bytes of <code>host</code> into this staging buffer.
+     *
+     * @param host
+     *            a primitive array or a {@link java.nio.Buffer} that contains the data
+     * @param size
+     *            the number of bytes to copy
+     */
+    public void copyIn(Object host, long size) {
+        copyIn(host, byteBuffer, size);
+    }
+
+    /**
+     * Copy <code>size</code> bytes of <code>host</code> into <code>to</code>.
+     *
+     * @param host
+     *            a primitive array or a {@link java.nio.Buffer} that contains the data
+     * @param to
+     *            the host memory that receives the data
+     * @param size
+     *            the number of bytes to copy
+     */
+    public static void copyIn(Object host, ByteBuffer to, long size) {
+        ByteBuffer bb = to.duplicate().order(ByteOrder.nativeOrder());
+        bb.clear();
+        if (host instanceof float[]) {
+            bb.asFloatBuffer().put((float[]) host, 0, (int) (size / Platform.FLOAT_SIZE));
+        } else if (host instanceof double[]) {
+            bb.asDoubleBuffer().put((double[]) host, 0, (int) (size / Platform.DOUBLE_SIZE));
+        } else if (host instanceof int[]) {
+            bb.asIntBuffer().put((int[]) host, 0, (int) (size / Platform.INT_SIZE));
+        } else if (host instanceof byte[]) {
+            bb.put((byte[]) host, 0, (int) size);
+        } else if (host instanceof ByteBuffer) {
+            ByteBuffer src = ((ByteBuffer) host).duplicate();
+            src.position(0).limit((int) size);
+            bb.put(src);
+        } else {
+            throw new Error("Cannot stage host data of type " + (host == null ? "null" : host.getClass().getName()));
+        }
+    }
+
+    /**
+     * Copy <code>size</code> bytes of this staging buffer into <code>host</code>.
+     *
+     * @param host
+     *            a primitive array or a {@link java.nio.Buffer} that receives the data
+     * @param size
+     *            the number of bytes to copy
+     */
+    public void copyOut(Object host, long size) {
+        copyOut(byteBuffer, host, size);
+    }
+
+    /**
+     * Copy <code>size</code> bytes of <code>from</code> into <code>host</code>.
+     *
+     * @param from
+     *            the host memory that contains the data
+     * @param host
+     *            a primitive array or a {@link java.nio.Buffer} that receives the data
+     * @param size
+     *            the number of bytes to copy
+     */
+    public static void copyOut(ByteBuffer from, Object host, long size) {
+        ByteBuffer bb = from.duplicate().order(ByteOrder.nativeOrder());
+        bb.clear();
+        if (host instanceof float[]) {
+            bb.asFloatBuffer().get((float[]) host, 0, (int) (size / Platform.FLOAT_SIZE));
+        } else if (host instanceof double[]) {
+            bb.asDoubleBuffer().get((double[]) host, 0, (int) (size / Platform.DOUBLE_SIZE));
+        } else if (host instanceof int[]) {
+            bb.asIntBuffer().get((int[]) host, 0, (int) (size / Platform.INT_SIZE));
+        } else if (host instanceof byte[]) {
+            bb.get((byte[]) host, 0, (int) size);
+        } else if (host instanceof ByteBuffer) {
+            ByteBuffer dst = ((ByteBuffer) host).duplicate();
+            dst.position(0).limit((int) size);
+            bb.limit((int) size);
+            dst.put(bb);
+        } else {
+            throw new Error("Cannot unstage host data of type " + (host == null ? "null" : host.getClass().getName()));
+        }
+    }
+
+    /**
+     * Returns a {@link Pointer} to the host memory of this staging buffer that can be used for transfers.
+     *
+     * @return the <code>Pointer</code>
+     */
+    public abstract Pointer getPointer();
+
+    /**
+     * Release the resources of this staging buffer.
+     */
+    protected abstract void free();
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * A pool of StagingBuffers for one Device.  Buffers are kept in size classes
+ * that are a power of two, so that a buffer can be reused for any transfer
+ * that fits in it.  Allocating page-locked memory is expensive, which is the
+ * reason for pooling.
+ */
+class StagingPool {
+
+    private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.Device/memory");
+
+    // the smallest size class is 64 KB
+    private static final int MIN_SIZE_CLASS = 16;
+
+    // the largest size class is 1 GB, the maximum of a ByteBuffer
+    private static final int MAX_SIZE_CLASS = 30;
+
+    private final LongFunction<StagingBuffer> allocator;
+    private final int maxBuffersPerClass;
+    private final long maxPooledSize;
+
+    private final Map<Integer, Deque<StagingBuffer>> freeBuffers = new HashMap<Integer, Deque<StagingBuffer>>();
+
+    StagingPool(LongFunction<StagingBuffer> allocator, int maxBuffersPerClass, long maxPooledSize) {
+        this.allocator = allocator;
+        this.maxBuffersPerClass = maxBuffersPerClass;
+        this.maxPooledSize = maxPooledSize;
+    }
+
+    static long maxSize() {
+        return 1L << MAX_SIZE_CLASS;
+    }
+
+    StagingBuffer acquire(long size) {
+        int sizeClass = sizeClass(size);
+        synchronized (this) {
+            Deque<StagingBuffer> buffers = freeBuffers.get(sizeClass);
+            if (buffers != null && !buffers.isEmpty()) {
+                return buffers.pop();
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("allocating a staging buffer of size {}", 1L << sizeClass);
+        }
+        return allocator.apply(1L << sizeClass);
+    }
+
+    void release(StagingBuffer buffer) {
+        int sizeClass = sizeClass(buffer.capacity());
+        if (buffer.capacity() <= maxPooledSize) {
+            synchronized (this) {
+                Deque<StagingBuffer> buffers = freeBuffers.get(sizeClass);
+                if (buffers == null) {
+                    buffers = new ArrayDeque<StagingBuffer>();
+                    freeBuffers.put(sizeClass, buffers);
+                }
+                if (buffers.size() < maxBuffersPerClass) {
+                    buffers.push(buffer);
+                    return;
+                }
+            }
+        }
+        buffer.free();
+    }
+
+    private static int sizeClass(long size) {
+        int sizeClass = 64 - Long.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        if (sizeClass > MAX_SIZE_CLASS) {
+            throw new Error("Staging buffer too large: " + size);
+        }
+        return Math.max(sizeClass, MIN_SIZE_CLASS);
+    }
+}
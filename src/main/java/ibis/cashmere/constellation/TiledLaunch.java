@@ -0,0 +1,607 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A launch of a data-parallel {@link Kernel} whose arguments do not fit in the memory of the {@link Device}. The index space of
+ * the kernel is partitioned into tiles that are executed one after the other as ordinary {@link KernelLaunch} instances. The
+ * partitioned arrays are streamed to the device tile by tile through a fixed number of device buffers that are allocated once
+ * and reused for every tile, and the results of {@link Argument.Direction#OUT} arrays are written back into the host arrays.
+ * <p>
+ * A kernel that is executed in tiles sees the part of the partitioned arrays that belongs to its tile, starting at index 0. Its
+ * arguments should include the number of indices in the tile, see {@link #setTileSizeArgument()}, and may include the offset of
+ * the tile in the complete index space, see {@link #setTileOffsetArgument()}. The tiled dimension is the X dimension of the grid.
+ * <p>
+ * The number of indices in a tile is derived from the memory capacity of the device and the property
+ * <code>cashmere.tiling.memoryFraction</code> (0.8 by default), unless it is set with {@link #setTileSize(int)}. When a single
+ * tile covers the index space, the kernel is launched once on the host arrays themselves.
+ */
+public class TiledLaunch {
+
+    /**
+     * The <code>Partitioning</code> enumeration describes how the arrays of a kernel are partitioned over the index space.
+     */
+    public static enum Partitioning {
+        /**
+         * Each partitioned array has exactly one element per index.
+         */
+        ELEMENTWISE,
+        /**
+         * Each partitioned array has a row per index. The length of a row is the length of the array divided by the number of
+         * indices.
+         */
+        ROWS,
+    };
+
+    private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.TiledLaunch");
+
+    // the number of tiles that can be in flight at the same time
+    private static final int NR_SLOTS = 2;
+
+    private final Kernel kernel;
+    private final Partitioning partitioning;
+    private final int nrIndices;
+
+    private final List<TileArgument> arguments = new ArrayList<TileArgument>();
+    private final List<Object> wholeArrays = new ArrayList<Object>();
+
+    private int tileSize = 0;
+    private boolean launched = false;
+
+    // A TiledLaunch can only be created from a Kernel
+    TiledLaunch(Kernel kernel, Partitioning partitioning, int nrIndices) {
+        if (nrIndices <= 0) {
+            throw new Error("Invalid number of indices: " + nrIndices);
+        }
+        this.kernel = kernel;
+        this.partitioning = partitioning;
+        this.nrIndices = nrIndices;
+    }
+
+    /*
+     * Public methods
+     */
+
+    /**
+     * Set the number of indices in a tile instead of deriving it from the memory capacity of the device.
+     *
+     * @param tileSize
+     *            the number of indices in a tile
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize <= 0) {
+            throw new Error("Invalid tile size: " + tileSize);
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Set an array argument that is partitioned over the tiles.
+     *
+     * @param a
+     *            the argument to be set for this kernel
+     * @param d
+     *            indicates whether the value is only read, only written, or both
+     */
+    public void setArgument(float[] a, Argument.Direction d) {
+        addPartitioned(a, a.length, Platform.FLOAT_SIZE, d);
+    }
+
+    /**
+     * Set an array argument that is partitioned over the tiles.
+     *
+     * @param a
+     *            the argument to be set for this kernel
+     * @param d
+     *            indicates whether the value is only read, only written, or both
+     */
+    public void setArgument(double[] a, Argument.Direction d) {
+        addPartitioned(a, a.length, Platform.DOUBLE_SIZE, d);
+    }
+
+    /**
+     * Set an array argument that is partitioned over the tiles.
+     *
+     * @param a
+     *            the argument to be set for this kernel
+     * @param d
+     *            indicates whether the value is only read, only written, or both
+     */
+    public void setArgument(int[] a, Argument.Direction d) {
+        addPartitioned(a, a.length, Platform.INT_SIZE, d);
+    }
+
+    /**
+     * Set an array argument that is partitioned over the tiles.
+     *
+     * @param a
+     *            the argument to be set for this kernel
+     * @param d
+     *            indicates whether the value is only read, only written, or both
+     */
+    public void setArgument(byte[] a, Argument.Direction d) {
+        addPartitioned(a, a.length, 1, d);
+    }
+
+    /**
+     * Set an array argument that is passed as a whole to every tile. The array is copied to the device once.
+     *
+     * @param a
+     *            the argument to be set for this kernel
+     */
+    public void setWholeArgument(float[] a) {
+        addWhole(a, (l) -> l.setArgumentNoCopy(a, Argument.Direction.IN), (long) a.length * Platform.FLOAT_SIZE);
+    }
+
+    /**
+     * Set an array argument that is passed as a whole to every tile. The array is copied to the device once.
+     *
+     * @param a
+     *            the argument to be set for this kernel
+     */
+    public void setWholeArgument(double[] a) {
+        addWhole(a, (l) -> l.setArgumentNoCopy(a, Argument.Direction.IN), (long) a.length * Platform.DOUBLE_SIZE);
+    }
+
+    /**
+     * Set an array argument that is passed as a whole to every tile. The array is copied to the device once.
+     *
+     * @param a
+     *            the argument to be set for this kernel
+     */
+    public void setWholeArgument(int[] a) {
+        addWhole(a, (l) -> l.setArgumentNoCopy(a, Argument.Direction.IN), (long) a.length * Platform.INT_SIZE);
+    }
+
+    /**
+     * Set an array argument that is passed as a whole to every tile. The array is copied to the device once.
+     *
+     * @param a
+     *            the argument to be set for this kernel
+     */
+    public void setWholeArgument(byte[] a) {
+        addWhole(a, (l) -> l.setArgumentNoCopy(a, Argument.Direction.IN), a.length);
+    }
+
+    /**
+     * Set a scalar argument that is the same for every tile.
+     *
+     * @param i
+     *            the argument to be set for this kernel
+     */
+    public void setArgument(int i) {
+        arguments.add(new ScalarArgument((l, offset, count) -> l.setArgument(i, Argument.Direction.IN)));
+    }
+
+    /**
+     * Set a scalar argument that is the same for every tile.
+     *
+     * @param f
+     *            the argument to be set for this kernel
+     */
+    public void setArgument(float f) {
+        arguments.add(new ScalarArgument((l, offset, count) -> l.setArgument(f, Argument.Direction.IN)));
+    }
+
+    /**
+     * Set a scalar argument that is the same for every tile.
+     *
+     * @param f
+     *            the argument to be set for this kernel
+     */
+    public void setArgument(double f) {
+        arguments.add(new ScalarArgument((l, offset, count) -> l.setArgument(f, Argument.Direction.IN)));
+    }
+
+    /**
+     * Set an <code>int</code> argument that receives the number of indices of a tile.
+     */
+    public void setTileSizeArgument() {
+        arguments.add(new ScalarArgument((l, offset, count) -> l.setArgument(count, Argument.Direction.IN)));
+    }
+
+    /**
+     * Set an <code>int</code> argument that receives the index of the first element of a tile in the complete index space.
+     */
+    public void setTileOffsetArgument() {
+        arguments.add(new ScalarArgument((l, offset, count) -> l.setArgument(offset, Argument.Direction.IN)));
+    }
+
+    /**
+     * Launch the kernel over the complete index space with a one-dimensional grid. This method returns when the results of all
+     * tiles are in the host arrays.
+     *
+     * @param blockX
+     *            the size of the block in the X direction
+     */
+    public void launch(int blockX) {
+        launch(1, 1, blockX, 1, 1);
+    }
+
+    /**
+     * Launch the kernel over the complete index space. The grid in the X direction covers the tile. This method returns when the
+     * results of all tiles are in the host arrays.
+     *
+     * @param gridY
+     *            the size of the grid in the Y direction
+     * @param gridZ
+     *            the size of the grid in the Z direction
+     * @param blockX
+     *            the size of the block in the X direction
+     * @param blockY
+     *            the size of the block in the Y direction
+     * @param blockZ
+     *            the size of the block in the Z direction
+     */
+    public void launch(int gridY, int gridZ, int blockX, int blockY, int blockZ) {
+        if (launched) {
+            throw new Error("TiledLaunch can only be launched once");
+        }
+        launched = true;
+
+        Device device = kernel.getDevice();
+        int indicesPerTile = computeTileSize(device, blockX);
+        int nrTiles = (nrIndices + indicesPerTile - 1) / indicesPerTile;
+        if (logger.isDebugEnabled()) {
+            logger.debug("{}: {} indices in {} tiles of {} indices on {}", kernel.getName(), nrIndices, nrTiles, indicesPerTile,
+                    device);
+        }
+
+        KernelLaunch[] inFlight = new KernelLaunch[NR_SLOTS];
+        int[][] tiles = new int[NR_SLOTS][];
+        KernelLaunch l = null;
+        boolean completed = false;
+        try {
+            for (TileArgument a : arguments) {
+                a.allocate(device, indicesPerTile);
+            }
+            for (Object a : wholeArrays) {
+                copyWhole(device, a);
+            }
+
+            for (int t = 0; t < nrTiles; t++) {
+                int slot = t % NR_SLOTS;
+                if (inFlight[slot] != null) {
+                    complete(device, inFlight[slot], slot, tiles[slot]);
+                    inFlight[slot] = null;
+                }
+                int offset = t * indicesPerTile;
+                int count = Math.min(indicesPerTile, nrIndices - offset);
+                tiles[slot] = new int[] { offset, count };
+
+                l = kernel.createLaunch();
+                for (TileArgument a : arguments) {
+                    a.set(device, l, slot, offset, count);
+                }
+                int gridX = (count + blockX - 1) / blockX * blockX;
+                l.launch(gridX, gridY, gridZ, blockX, blockY, blockZ, false);
+                inFlight[slot] = l;
+                l = null;
+            }
+            for (int t = nrTiles; t < nrTiles + NR_SLOTS; t++) {
+                int slot = t % NR_SLOTS;
+                if (inFlight[slot] != null) {
+                    complete(device, inFlight[slot], slot, tiles[slot]);
+                    inFlight[slot] = null;
+                }
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                // the device buffers can only be cleaned when no tile uses them any more
+                abort(l, inFlight);
+            }
+            for (TileArgument a : arguments) {
+                a.free(device);
+            }
+            for (Object a : wholeArrays) {
+                cleanWhole(device, a);
+            }
+        }
+    }
+
+    /*
+     * Private methods
+     */
+
+    private void complete(Device device, KernelLaunch l, int slot, int[] tile) {
+        l.finish();
+        for (TileArgument a : arguments) {
+            a.stitch(device, slot, tile[0], tile[1]);
+        }
+    }
+
+    private void abort(KernelLaunch l, KernelLaunch[] inFlight) {
+        if (l != null) {
+            l.cancel();
+        }
+        for (KernelLaunch f : inFlight) {
+            if (f != null) {
+                try {
+                    f.finish();
+                } catch (Throwable e) {
+                    logger.warn("{}: could not finish a tile of a failed launch", kernel.getName(), e);
+                }
+            }
+        }
+    }
+
+    private int computeTileSize(Device device, int blockX) {
+        long bytesPerIndex = 0;
+        for (TileArgument a : arguments) {
+            bytesPerIndex += a.bytesPerIndex();
+        }
+        if (tileSize > 0 || bytesPerIndex == 0) {
+            return tileSize > 0 ? Math.min(tileSize, nrIndices) : nrIndices;
+        }
+
+        long wholeBytes = 0;
+        for (TileArgument a : arguments) {
+            wholeBytes += a.wholeBytes();
+        }
+        double fraction = Cashmere.cashmere.getProperties().getDoubleProperty("cashmere.tiling.memoryFraction", 0.8);
+        long available = (long) (device.getMemoryCapacity() * fraction) - wholeBytes;
+        long indices = available / (NR_SLOTS * bytesPerIndex);
+        if (indices < blockX) {
+            throw new Error("Not enough device memory for a tile of " + blockX + " indices on " + device);
+        }
+        if (indices >= nrIndices) {
+            return nrIndices;
+        }
+        // the host buffer of a tile is a ByteBuffer, so it holds at most Integer.MAX_VALUE bytes
+        for (TileArgument a : arguments) {
+            if (a.bytesPerIndex() > 0) {
+                indices = Math.min(indices, Integer.MAX_VALUE / a.bytesPerIndex());
+            }
+        }
+        if (indices < blockX) {
+            throw new Error("A tile of " + blockX + " indices does not fit in a buffer on " + device);
+        }
+        return (int) (indices / blockX * blockX);
+    }
+
+    private void addPartitioned(Object a, int length, int elementSize, Argument.Direction d) {
+        int elementsPerIndex;
+        if (partitioning == Partitioning.ELEMENTWISE) {
+            if (length != nrIndices) {
+                throw new Error("Array of length " + length + " cannot be partitioned element-wise over " + nrIndices
+                        + " indices");
+            }
+            elementsPerIndex = 1;
+        } else {
+            if (length % nrIndices != 0) {
+                throw new Error("Array of length " + length + " cannot be partitioned in rows over " + nrIndices + " indices");
+            }
+            elementsPerIndex = length / nrIndices;
+        }
+        arguments.add(new PartitionedArgument(a, elementsPerIndex, elementSize, d));
+    }
+
+    private void addWhole(Object a, WholeSetter setter, long size) {
+        wholeArrays.add(a);
+        arguments.add(new WholeArgument(setter, size));
+    }
+
+    private static void copyWhole(Device device, Object a) {
+        if (a instanceof float[]) {
+            device.copy((float[]) a, Argument.Direction.IN);
+        } else if (a instanceof double[]) {
+            device.copy((double[]) a, Argument.Direction.IN);
+        } else if (a instanceof int[]) {
+            device.copy((int[]) a, Argument.Direction.IN);
+        } else {
+            device.copy((byte[]) a, Argument.Direction.IN);
+        }
+    }
+
+    private static void cleanWhole(Device device, Object a) {
+        if (a instanceof float[]) {
+            device.clean((float[]) a);
+        } else if (a instanceof double[]) {
+            device.clean((double[]) a);
+        } else if (a instanceof int[]) {
+            device.clean((int[]) a);
+        } else {
+            device.clean((byte[]) a);
+        }
+    }
+
+    /*
+     * The arguments of a tiled launch
+     */
+
+    private static interface TileSetter {
+        void set(KernelLaunch l, int offset, int count);
+    }
+
+    private static interface WholeSetter {
+        void set(KernelLaunch l);
+    }
+
+    private static abstract class TileArgument {
+
+        void allocate(Device device, int indicesPerTile) {
+        }
+
+        abstract void set(Device device, KernelLaunch l, int slot, int offset, int count);
+
+        void stitch(Device device, int slot, int offset, int count) {
+        }
+
+        void free(Device device) {
+        }
+
+        long bytesPerIndex() {
+            return 0;
+        }
+
+        long wholeBytes() {
+            return 0;
+        }
+    }
+
+    private static class ScalarArgument extends TileArgument {
+
+        private final TileSetter setter;
+
+        ScalarArgument(TileSetter setter) {
+            this.setter = setter;
+        }
+
+        @Override
+        void set(Device device, KernelLaunch l, int slot, int offset, int count) {
+            setter.set(l, offset, count);
+        }
+    }
+
+    private static class WholeArgument extends TileArgument {
+
+        private final WholeSetter setter;
+        private final long size;
+
+        WholeArgument(WholeSetter setter, long size) {
+            this.setter = setter;
+            this.size = size;
+        }
+
+        @Override
+        void set(Device device, KernelLaunch l, int slot, int offset, int count) {
+            setter.set(l);
+        }
+
+        @Override
+        long wholeBytes() {
+            return size;
+        }
+    }
+
+    private static class PartitionedArgument extends TileArgument {
+
+        private final Object array;
+        private final int elementsPerIndex;
+        private final int elementSize;
+        private final Argument.Direction direction;
+
+        // the host and device buffers of a tile, one per slot, or null if a single tile covers the array
+        private Buffer[] buffers;
+        private Pointer[] pointers;
+
+        PartitionedArgument(Object array, int elementsPerIndex, int elementSize, Argument.Direction direction) {
+            this.array = array;
+            this.elementsPerIndex = elementsPerIndex;
+            this.elementSize = elementSize;
+            this.direction = direction;
+        }
+
+        @Override
+        void allocate(Device device, int indicesPerTile) {
+            if (indicesPerTile * elementsPerIndex >= Array.getLength(array)) {
+                // a single tile covers the array, so the launch uses the array itself
+                return;
+            }
+            int size = indicesPerTile * elementsPerIndex * elementSize;
+            buffers = new Buffer[NR_SLOTS];
+            pointers = new Pointer[NR_SLOTS];
+            for (int i = 0; i < NR_SLOTS; i++) {
+                buffers[i] = new Buffer(size);
+                pointers[i] = device.allocate(size);
+            }
+        }
+
+        @Override
+        void set(Device device, KernelLaunch l, int slot, int offset, int count) {
+            if (buffers == null) {
+                setWhole(l);
+                return;
+            }
+            if (direction != Argument.Direction.OUT) {
+                ByteBuffer b = buffers[slot].getByteBuffer().duplicate().order(ByteOrder.nativeOrder());
+                int from = offset * elementsPerIndex;
+                int length = count * elementsPerIndex;
+                if (array instanceof float[]) {
+                    b.asFloatBuffer().put((float[]) array, from, length);
+                } else if (array instanceof double[]) {
+                    b.asDoubleBuffer().put((double[]) array, from, length);
+                } else if (array instanceof int[]) {
+                    b.asIntBuffer().put((int[]) array, from, length);
+                } else {
+                    b.put((byte[]) array, from, length);
+                }
+                device.copy(buffers[slot], pointers[slot]);
+            }
+            l.setArgumentNoCopy(pointers[slot], direction);
+        }
+
+        @Override
+        void stitch(Device device, int slot, int offset, int count) {
+            if (buffers == null || direction == Argument.Direction.IN) {
+                return;
+            }
+            device.get(buffers[slot], pointers[slot]);
+            ByteBuffer b = buffers[slot].getByteBuffer().duplicate().order(ByteOrder.nativeOrder());
+            int to = offset * elementsPerIndex;
+            int length = count * elementsPerIndex;
+            if (array instanceof float[]) {
+                b.asFloatBuffer().get((float[]) array, to, length);
+            } else if (array instanceof double[]) {
+                b.asDoubleBuffer().get((double[]) array, to, length);
+            } else if (array instanceof int[]) {
+                b.asIntBuffer().get((int[]) array, to, length);
+            } else {
+                b.get((byte[]) array, to, length);
+            }
+        }
+
+        @Override
+        void free(Device device) {
+            if (pointers != null) {
+                for (Pointer p : pointers) {
+                    device.clean(p);
+                }
+                pointers = null;
+                buffers = null;
+            }
+        }
+
+        private void setWhole(KernelLaunch l) {
+            if (array instanceof float[]) {
+                l.setArgument((float[]) array, direction);
+            } else if (array instanceof double[]) {
+                l.setArgument((double[]) array, direction);
+            } else if (array instanceof int[]) {
+                l.setArgument((int[]) array, direction);
+            } else {
+                l.setArgument((byte[]) array, direction);
+            }
+        }
+
+        @Override
+        long bytesPerIndex() {
+            return (long) elementsPerIndex * elementSize;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+/**
+ * The mechanisms with which data can be transferred between the host and a {@link Device}.
+ *
+ * @see TransferPlanner
+ */
+public enum TransferPath {
+    /**
+     * The data is copied directly from or to (pageable) host memory.
+     */
+    PAGEABLE,
+    /**
+     * The data is staged through a page-locked host buffer of which the transfer itself is a DMA transfer.
+     */
+    PINNED,
+    /**
+     * The device memory is mapped into the address space of the host and the data is copied by the host.
+     */
+    MAPPED,
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2018 Vrije Universiteit Amsterdam, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ibis.cashmere.constellation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.util.TypedProperties;
+
+/**
+ * Chooses the {@link TransferPath} for transfers between the host and a {@link Device}.
+ * <p>
+ * For each direction and each transfer path that the device supports, the planner models the time of a transfer as a latency
+ * plus the size divided by a bandwidth. The latencies and bandwidths are calibrated by measuring transfers on the device, either
+ * at startup or lazily at the first transfer. The calibration is stored on disk, such that later runs on the same kind of device
+ * can reuse it. The planner also keeps track of the number of transfers and bytes per path, such that it can be verified which
+ * paths are used.
+ * <p>
+ * The planner is configured with the following properties:
+ * <ul>
+ * <li><code>cashmere.transfer.calibrate</code>: <code>lazy</code> (the default), <code>startup</code>, or <code>none</code>. With
+ * <code>none</code>, transfers use the {@link TransferPath#PAGEABLE} path whenever possible.</li>
+ * <li><code>cashmere.transfer.dir</code>: the directory in which calibrations are stored, by default
+ * <code>~/.cashmere</code>.</li>
+ * <li><code>cashmere.transfer.maxStaging</code>: the maximum size of a transfer that is staged through page-locked memory.</li>
+ * </ul>
+ */
+public class TransferPlanner {
+
+    private static final Logger logger = LoggerFactory.getLogger("ibis.cashmere.constellation.Device/transfer");
+
+    // the sizes with which transfers are calibrated
+    private static final long[] CALIBRATION_SIZES = { 4 * 1024, 256 * 1024, 8 * 1024 * 1024 };
+    private static final int CALIBRATION_REPETITIONS = 3;
+
+    private static final Argument.Direction[] DIRECTIONS = { Argument.Direction.IN, Argument.Direction.OUT };
+
+    private final Device device;
+    private final Set<TransferPath> paths;
+
+    private final String calibrate;
+    private final File calibrationFile;
+    private final long maxStaging;
+
+    // latency in seconds and bandwidth in bytes/second per direction and path, empty until the planner is calibrated; the
+    // calibration publishes a complete map, so that expectedTime reads it without a lock
+    private volatile Map<Argument.Direction, Map<TransferPath, double[]>> models;
+    // guarded by the monitor of the planner
+    private boolean calibrated;
+
+    private final Map<Argument.Direction, Map<TransferPath, AtomicLong>> nrTransfers;
+    private final Map<Argument.Direction, Map<TransferPath, AtomicLong>> nrBytes;
+
+    TransferPlanner(Device device, Set<TransferPath> paths, TypedProperties props) {
+        this.device = device;
+        this.paths = EnumSet.copyOf(paths);
+        this.calibrate = props.getProperty("cashmere.transfer.calibrate", "lazy");
+        String dir = props.getProperty("cashmere.transfer.dir", System.getProperty("user.home") + File.separator + ".cashmere");
+        this.calibrationFile = new File(dir, "transfer-" + device.getNickName() + ".properties");
+        this.maxStaging = props.getLongProperty("cashmere.transfer.maxStaging", 64 * 1024 * 1024);
+
+        this.models = newModels();
+        this.nrTransfers = new EnumMap<Argument.Direction, Map<TransferPath, AtomicLong>>(Argument.Direction.class);
+        this.nrBytes = new EnumMap<Argument.Direction, Map<TransferPath, AtomicLong>>(Argument.Direction.class);
+        for (Argument.Direction d : DIRECTIONS) {
+            Map<TransferPath, AtomicLong> transfers = new EnumMap<TransferPath, AtomicLong>(TransferPath.class);
+            Map<TransferPath, AtomicLong> bytes = new EnumMap<TransferPath, AtomicLong>(TransferPath.class);
+            for (TransferPath p : TransferPath.values()) {
+                transfers.put(p, new AtomicLong());
+                bytes.put(p, new AtomicLong());
+            }
+            nrTransfers.put(d, transfers);
+            nrBytes.put(d, bytes);
+        }
+        this.calibrated = false;
+    }
+
+    /*
+     * Public methods
+     */
+
+    /**
+     * Returns the number of transfers in direction <code>d</code> that used <code>path</code>.
+     *
+     * @param d
+     *            {@link Argument.Direction#IN} for transfers to the device, {@link Argument.Direction#OUT} for transfers to the
+     *            host
+     * @param path
+     *            the transfer path
+     * @return the number of transfers
+     */
+    public long getNrTransfers(Argument.Direction d, TransferPath path) {
+        return nrTransfers.get(d).get(path).get();
+    }
+
+    /**
+     * Returns the number of bytes transferred in direction <code>d</code> that used <code>path</code>.
+     *
+     * @param d
+     *            {@link Argument.Direction#IN} for transfers to the device, {@link Argument.Direction#OUT} for transfers to the
+     *            host
+     * @param path
+     *            the transfer path
+     * @return the number of bytes
+     */
+    public long getNrBytes(Argument.Direction d, TransferPath path) {
+        return nrBytes.get(d).get(path).get();
+    }
+
+    /**
+     * Returns the expected time of a transfer of <code>size</code> bytes in direction <code>d</code> over the fastest path.
+     *
+     * @param d
+     *            {@link Argument.Direction#IN} for transfers to the device, {@link Argument.Direction#OUT} for transfers to the
+     *            host
+     * @param size
+     *            the number of bytes
+     * @return the expected time in seconds, or 0 if the planner has not been calibrated
+     */
+    public double expectedTime(Argument.Direction d, long size) {
+        double best = 0;
+        for (double[] model : models.get(d).values()) {
+            double time = model[0] + size / model[1];
+            if (best == 0 || time < best) {
+                best = time;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Chooses the path for a transfer of <code>size</code> bytes in direction <code>d</code>, and records the transfer.
+     *
+     * @param d
+     *            {@link Argument.Direction#IN} for transfers to the device, {@link Argument.Direction#OUT} for transfers to the
+     *            host
+     * @param size
+     *            the number of bytes
+     * @param hostDirect
+     *            whether the host data is a {@link java.nio.Buffer} instead of a primitive array
+     * @param async
+     *            whether the transfer is asynchronous
+     * @return the path for the transfer
+     */
+    public TransferPath choose(Argument.Direction d, long size, boolean hostDirect, boolean async) {
+        EnumSet<TransferPath> candidates = EnumSet.copyOf(paths);
+        if (hostDirect || (async && d == Argument.Direction.OUT)) {
+            // direct buffers can be transferred without an extra copy, and an asynchronous read cannot be copied out of a
+            // staging buffer before it completes
+            candidates.retainAll(EnumSet.of(TransferPath.PAGEABLE));
+        } else if (async) {
+            // the host data of an asynchronous write may move, so it has to be staged
+            candidates.remove(TransferPath.PAGEABLE);
+        }
+        if (size > StagingPool.maxSize() || (size > maxStaging && candidates.size() > 1)) {
+            // without a staging buffer that fits, an asynchronous write falls back to a synchronous pageable copy
+            candidates.remove(TransferPath.PINNED);
+        }
+
+        TransferPath path;
+        if (candidates.isEmpty()) {
+            path = TransferPath.PAGEABLE;
+        } else if (candidates.size() == 1 || calibrate.equals("none")) {
+            path = candidates.contains(TransferPath.PAGEABLE) ? TransferPath.PAGEABLE : candidates.iterator().next();
+        } else {
+            path = fastest(d, size, candidates);
+        }
+
+        nrTransfers.get(d).get(path).incrementAndGet();
+        nrBytes.get(d).get(path).addAndGet(size);
+        if (logger.isDebugEnabled()) {
+            logger.debug("{}: transfer {} of {} bytes using {}", device, d, size, path);
+        }
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("transfers " + device + ":");
+        for (Argument.Direction d : DIRECTIONS) {
+            for (TransferPath p : paths) {
+                sb.append(String.format(" %s/%s: %d (%d bytes)", d, p, getNrTransfers(d, p), getNrBytes(d, p)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Package methods
+     */
+
+    synchronized void calibrate() {
+        if (calibrated || calibrate.equals("none")) {
+            return;
+        }
+        calibrated = true;
+        Map<Argument.Direction, Map<TransferPath, double[]>> loaded = load();
+        if (loaded != null) {
+            models = loaded;
+            return;
+        }
+
+        Map<Argument.Direction, Map<TransferPath, double[]>> measured = newModels();
+        long maxSize = CALIBRATION_SIZES[CALIBRATION_SIZES.length - 1];
+        byte[] host = new byte[(int) maxSize];
+        Pointer hostPtr = device.getPlatform().toPointer(host);
+        Pointer devicePtr = device.createBuffer(Argument.Direction.INOUT, maxSize);
+        try {
+            for (Argument.Direction d : DIRECTIONS) {
+                for (TransferPath p : paths) {
+                    double[] times = new double[CALIBRATION_SIZES.length];
+                    for (int i = 0; i < CALIBRATION_SIZES.length; i++) {
+                        times[i] = measure(d, p, CALIBRATION_SIZES[i], hostPtr, devicePtr);
+                    }
+                    double[] model = fit(CALIBRATION_SIZES, times);
+                    measured.get(d).put(p, model);
+                    if (logger.isInfoEnabled()) {
+                        logger.info(String.format("%s: %s/%s latency = %.1f us, bandwidth = %.2f GB/s", device, d, p,
+                                model[0] * 1e6, model[1] / 1e9));
+                    }
+                }
+            }
+        } finally {
+            devicePtr.clean();
+        }
+        models = measured;
+        save(measured);
+    }
+
+    /*
+     * Private methods
+     */
+
+    private TransferPath fastest(Argument.Direction d, long size, Set<TransferPath> candidates) {
+        calibrate();
+        Map<TransferPath, double[]> pathModels = models.get(d);
+        TransferPath best = null;
+        double bestTime = Double.MAX_VALUE;
+        for (TransferPath p : candidates) {
+            double[] model = pathModels.get(p);
+            if (model != null) {
+                double time = model[0] + size / model[1];
+                if (time < bestTime) {
+                    bestTime = time;
+                    best = p;
+                }
+            }
+        }
+        if (best == null) {
+            return candidates.contains(TransferPath.PAGEABLE) ? TransferPath.PAGEABLE : candidates.iterator().next();
+        }
+        return best;
+    }
+
+    private double measure(Argument.Direction d, TransferPath p, long size, Pointer hostPtr, Pointer devicePtr) {
+        double best = Double.MAX_VALUE;
+        // the first transfer is a warm-up
+        for (int i = 0; i <= CALIBRATION_REPETITIONS; i++) {
+            long start = System.nanoTime();
+            if (d == Argument.Direction.IN) {
+                device.writeNoCreateBuffer(p, device.getWriteQueue(), null, false, size, hostPtr, devicePtr);
+            } else {
+                device.enqueueReadBuffer(p, device.getReadQueue(), false, null, size, hostPtr, devicePtr);
+            }
+            double time = (System.nanoTime() - start) / 1e9;
+            if (i > 0 && time < best) {
+                best = time;
+            }
+        }
+        return best;
+    }
+
+    // least squares fit of time = latency + size / bandwidth
+    private static double[] fit(long[] sizes, double[] times) {
+        int n = sizes.length;
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        for (int i = 0; i < n; i++) {
+            sumX += sizes[i];
+            sumY += times[i];
+            sumXX += (double) sizes[i] * sizes[i];
+            sumXY += sizes[i] * times[i];
+        }
+        double slope = (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+        if (!(slope > 0)) {
+            slope = times[n - 1] / sizes[n - 1];
+        }
+        double latency = Math.max((sumY - slope * sumX) / n, 0.0);
+        return new double[] { latency, 1.0 / slope };
+    }
+
+    private static Map<Argument.Direction, Map<TransferPath, double[]>> newModels() {
+        Map<Argument.Direction, Map<TransferPath, double[]>> models =
+                new EnumMap<Argument.Direction, Map<TransferPath, double[]>>(Argument.Direction.class);
+        for (Argument.Direction d : DIRECTIONS) {
+            models.put(d, new EnumMap<TransferPath, double[]>(TransferPath.class));
+        }
+        return models;
+    }
+
+    // the calibration stored on disk, or null if there is no complete one
+    private Map<Argument.Direction, Map<TransferPath, double[]>> load() {
+        if (!calibrationFile.exists()) {
+            return null;
+        }
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(calibrationFile)) {
+            p.load(in);
+        } catch (IOException e) {
+            logger.warn("Could not read transfer calibration " + calibrationFile, e);
+            return null;
+        }
+        Map<Argument.Direction, Map<TransferPath, double[]>> loaded = newModels();
+        for (Argument.Direction d : DIRECTIONS) {
+            for (TransferPath path : paths) {
+                String latency = p.getProperty(d + "." + path + ".latency");
+                String bandwidth = p.getProperty(d + "." + path + ".bandwidth");
+                if (latency == null || bandwidth == null) {
+                    return null;
+                }
+                loaded.get(d).put(path, new double[] { Double.parseDouble(latency), Double.parseDouble(bandwidth) });
+            }
+        }
+        logger.info("{}: loaded transfer calibration from {}", device, calibrationFile);
+        return loaded;
+    }
+
+    private void save(Map<Argument.Direction, Map<TransferPath, double[]>> models) {
+        Properties p = new Properties();
+        for (Argument.Direction d : DIRECTIONS) {
+            for (Map.Entry<TransferPath, double[]> e : models.get(d).entrySet()) {
+                p.setProperty(d + "." + e.getKey() + ".latency", Double.toString(e.getValue()[0]));
+                p.setProperty(d + "." + e.getKey() + ".bandwidth", Double.toString(e.getValue()[1]));
+            }
+        }
+        calibrationFile.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(calibrationFile)) {
+            p.store(out, "Cashmere transfer calibration for " + device.getNickName());
+        } catch (IOException e) {
+            logger.warn("Could not write transfer calibration " + calibrationFile, e);
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package ibis.cashmere.constellation.deviceImpl.jcuda;
 
 import static jcuda.driver.JCudaDriver.cuCtxCreate;
+import static jcuda.driver.JCudaDriver.cuCtxGetStreamPriorityRange;
 import static jcuda.driver.JCudaDriver.cuCtxSetCurrent;
+import static jcuda.driver.JCudaDriver.cuDriverGetVersion;
 import static jcuda.driver.JCudaDriver.cuEventCreate;
 import static jcuda.driver.JCudaDriver.cuEventRecord;
 import static jcuda.driver.JCudaDriver.cuEventSynchronize;
+import static jcuda.driver.JCudaDriver.cuFuncGetAttribute;
 import static jcuda.driver.JCudaDriver.cuMemAlloc;
 import static jcuda.driver.JCudaDriver.cuMemcpyDtoH;
 import static jcuda.driver.JCudaDriver.cuMemcpyDtoHAsync;
@@ -12,7 +15,10 @@ import static jcuda.driver.JCudaDriver.cuMemcpyHtoD;
 import static jcuda.driver.JCudaDriver.cuMemcpyHtoDAsync;
 import static jcuda.driver.JCudaDriver.cuModuleGetFunction;
 import static jcuda.driver.JCudaDriver.cuModuleLoadData;
+import static jcuda.driver.JCudaDriver.cuModuleUnload;
+import static jcuda.driver.JCudaDriver.cuStreamAddCallback;
 import static jcuda.driver.JCudaDriver.cuStreamCreate;
+import static jcuda.driver.JCudaDriver.cuStreamCreateWithPriority;
 import static jcuda.driver.JCudaDriver.cuStreamSynchronize;
 import static jcuda.driver.JCudaDriver.cuStreamWaitEvent;
 
@@ -20,36 +26,52 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
+import ibis.cashmere.constellation.Argument;
 import ibis.cashmere.constellation.Argument.Direction;
 import ibis.cashmere.constellation.Cashmere;
 import ibis.cashmere.constellation.CommandStream;
 import ibis.cashmere.constellation.Device;
 import ibis.cashmere.constellation.DeviceEvent;
 import ibis.cashmere.constellation.KernelLaunch;
+import ibis.cashmere.constellation.Launch;
 import ibis.cashmere.constellation.Pointer;
+import ibis.cashmere.constellation.StagingBuffer;
+import ibis.cashmere.constellation.TransferPath;
 import jcuda.CudaException;
 import jcuda.driver.CUcontext;
 import jcuda.driver.CUdevice;
 import jcuda.driver.CUdeviceptr;
 import jcuda.driver.CUevent;
 import jcuda.driver.CUfunction;
+import jcuda.driver.CUfunction_attribute;
 import jcuda.driver.CUmodule;
 import jcuda.driver.CUstream;
 import jcuda.driver.JCudaDriver;
 
 public class CudaDevice extends Device {
 
+    // a kernel declaration, with optional qualifiers such as __launch_bounds__(256) or __attribute__((...))
+    private static final String QUALIFIERS = "(?:(?:__launch_bounds__\\s*\\([^)]*\\)|__attribute__\\s*\\(\\([^;{]*?\\)\\))\\s*)*";
+    private static final Pattern KERNEL_PATTERN = Pattern.compile("\\b__global__\\s+" + QUALIFIERS + "void\\s+" + QUALIFIERS
+            + "(\\w+)\\s*\\(");
+
     private final CUcontext ctxt;
 
-    private Map<String, CUfunction> kernels = new HashMap<String, CUfunction>();
+    private Map<String, CUfunction> kernels = new ConcurrentHashMap<String, CUfunction>();
+    private Map<String, CUmodule> modules = new ConcurrentHashMap<String, CUmodule>();
 
     private String architecture;
 
@@ -75,6 +97,16 @@ public class CudaDevice extends Device {
         cuStreamCreate(stream, jcuda.driver.CUstream_flags.CU_STREAM_DEFAULT);
         setReadQueue(new CudaCommandStream(stream));
 
+        // a lower number is a greater priority, and the streams above have the least priority
+        int[] leastPriority = new int[1];
+        int[] greatestPriority = new int[1];
+        cuCtxGetStreamPriorityRange(leastPriority, greatestPriority);
+        if (greatestPriority[0] != leastPriority[0]) {
+            stream = new CUstream();
+            cuStreamCreateWithPriority(stream, jcuda.driver.CUstream_flags.CU_STREAM_DEFAULT, greatestPriority[0]);
+            setExecuteQueue(Launch.Priority.HIGH, new CudaCommandStream(stream));
+        }
+
         int cc[] = getMajorMinor(device);
 
         this.architecture = "compute_" + cc[0] + "" + cc[1];
@@ -125,24 +157,119 @@ public class CudaDevice extends Device {
     }
 
     @Override
-    public void addKernel(String kernelSource, String name) {
-        CUmodule module = new CUmodule();
+    protected String getCompilerIdentity() {
+        int[] version = new int[1];
+        cuDriverGetVersion(version);
+        return info.getName() + "/" + version[0] + "/" + String.join(" ", getCompilerOptions());
+    }
+
+    @Override
+    protected byte[] buildKernel(String kernelSource, String name) {
         logger.debug("Adding a kernel for Cuda, name = " + name);
         try {
-            // Need to set the context to the current device.
-            // Note that addKernel is called by the main thread, for all devices.
-            cuCtxSetCurrent(ctxt);
-            byte[] cubin = compileCuSourceToCubin(kernelSource, "-lineinfo", "-gencode=arch=" + architecture + ",code=" + capability);
-            cuModuleLoadData(module, cubin);
-            String kernelName = name.substring(0, name.lastIndexOf(".cu"));
+            byte[] cubin = compileCuSourceToCubin(kernelSource, getCompilerOptions());
+            loadKernel(cubin, kernelSource, name);
+            return cubin;
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    @Override
+    protected void loadKernel(byte[] cubin, String kernelSource, String name) {
+        CUmodule module = new CUmodule();
+        // Need to set the context to the current device.
+        // Note that loadKernel may be called by any thread, for all devices.
+        cuCtxSetCurrent(ctxt);
+        cuModuleLoadData(module, cubin);
+        // every kernel in the module is registered under its own name
+        for (String kernelName : getKernelNames(kernelSource, name)) {
             CUfunction f = new CUfunction();
             cuModuleGetFunction(f, module, kernelName);
             kernels.put(kernelName, f);
-        } catch (IOException e) {
-            throw new Error(e);
+            modules.put(kernelName, module);
         }
     }
 
+    @Override
+    protected String renameKernel(String kernelSource, String name, String newName) {
+        Pattern declaration = Pattern.compile("(\\b__global__\\s+" + QUALIFIERS + "void\\s+" + QUALIFIERS + ")"
+                + Pattern.quote(name) + "(\\s*\\()");
+        Matcher matcher = declaration.matcher(kernelSource);
+        if (!matcher.find()) {
+            // the name was derived from the file name, see getKernelNames, so the declaration is not known
+            return kernelSource.replaceAll("\\b" + Pattern.quote(name) + "\\b", Matcher.quoteReplacement(newName));
+        }
+        return matcher.replaceAll("$1" + Matcher.quoteReplacement(newName) + "$2");
+    }
+
+    @Override
+    protected void warmUpKernels() {
+        // querying a function makes the driver load it
+        cuCtxSetCurrent(ctxt);
+        int[] value = new int[1];
+        for (CUfunction f : kernels.values()) {
+            cuFuncGetAttribute(value, CUfunction_attribute.CU_FUNC_ATTRIBUTE_MAX_THREADS_PER_BLOCK, f);
+        }
+    }
+
+    @Override
+    protected void whenComplete(CommandStream q, DeviceEvent event, Runnable action) {
+        // the callback runs when all preceding work on the stream has completed
+        cuStreamAddCallback(((CudaCommandStream) q).getQueue(), (stream, status, data) -> action.run(), null, 0);
+    }
+
+    @Override
+    protected CommandStream createExecuteQueue() {
+        cuCtxSetCurrent(ctxt);
+        CUstream stream = new CUstream();
+        cuStreamCreate(stream, jcuda.driver.CUstream_flags.CU_STREAM_DEFAULT);
+        return new CudaCommandStream(stream);
+    }
+
+    @Override
+    protected DeviceEvent recordEvent(CommandStream q) {
+        cuCtxSetCurrent(ctxt);
+        CUevent e = new CUevent();
+        cuEventCreate(e, jcuda.driver.CUevent_flags.CU_EVENT_BLOCKING_SYNC);
+        cuEventRecord(e, ((CudaCommandStream) q).getQueue());
+        return new CudaEvent(e);
+    }
+
+    @Override
+    protected void waitForEvent(CommandStream q, DeviceEvent event) {
+        cuCtxSetCurrent(ctxt);
+        cuStreamWaitEvent(((CudaCommandStream) q).getQueue(), ((CudaEvent) event).getEvent(), 0);
+    }
+
+    @Override
+    protected void removeKernel(String name) {
+        kernels.remove(name);
+        CUmodule module = modules.remove(name);
+        if (module != null && !modules.containsValue(module)) {
+            cuCtxSetCurrent(ctxt);
+            cuModuleUnload(module);
+        }
+    }
+
+    @Override
+    protected List<String> getKernelNames(String kernelSource, String name) {
+        // the kernels should be declared extern "C" to avoid mangling of their names
+        Set<String> names = new LinkedHashSet<String>();
+        Matcher matcher = KERNEL_PATTERN.matcher(stripComments(kernelSource));
+        while (matcher.find()) {
+            names.add(matcher.group(1));
+        }
+        if (names.isEmpty()) {
+            names.add(name.substring(0, name.lastIndexOf(".cu")));
+        }
+        return new ArrayList<String>(names);
+    }
+
+    private String[] getCompilerOptions() {
+        return new String[] { "-lineinfo", "-gencode=arch=" + architecture + ",code=" + capability };
+    }
+
     private byte[] compileCuSourceToCubin(final String source, final String... options) throws IOException {
         final File cuFile = File.createTempFile("jcuda", ".cu");
         final File cubinFile = File.createTempFile("jcuda", ".cubin");
@@ -199,9 +326,28 @@ public class CudaDevice extends Device {
         // TODO: not possible in CUDA? We can only get the time difference between two events?
     }
 
+    @Override
+    protected Set<TransferPath> getTransferPaths() {
+        // device memory cannot be mapped into the host with the driver API
+        return EnumSet.of(TransferPath.PAGEABLE, TransferPath.PINNED);
+    }
+
+    @Override
+    protected StagingBuffer allocateStagingBuffer(long size) {
+        return withAllocationError(() -> CudaStagingBuffer.allocate(ctxt, size));
+    }
+
     @Override
     public DeviceEvent writeNoCreateBuffer(CommandStream q, DeviceEvent[] waitEvents, boolean async, long size, Pointer hostPtr,
             Pointer devicePtr) {
+        boolean hostDirect = !((CudaPointer) hostPtr).isHostArray();
+        TransferPath path = getTransferPlanner().choose(Argument.Direction.IN, size, hostDirect, async);
+        return writeNoCreateBuffer(path, q, waitEvents, async, size, hostPtr, devicePtr);
+    }
+
+    @Override
+    protected DeviceEvent writeNoCreateBuffer(TransferPath path, CommandStream q, DeviceEvent[] waitEvents, boolean async,
+            long size, Pointer hostPtr, Pointer devicePtr) {
         cuCtxSetCurrent(ctxt);
         CUstream cuStream = ((CudaCommandStream) q).getQueue();
         // insert waits for the wait events
@@ -212,9 +358,26 @@ public class CudaDevice extends Device {
         }
 
 
-        // Asynchronous writes require page-pinned memory, which we don't have. So, instead, we
-        // synchronize on the stream, and copy synchronously.
-        // TODO: investigate!
+        if (path == TransferPath.PINNED) {
+            // Stage the data in page-locked memory, so that the copy can be asynchronous.
+            StagingBuffer staging = acquireStagingBuffer(size);
+            staging.copyIn(((CudaPointer) hostPtr).getHost(), size);
+            cuMemcpyHtoDAsync(((CudaPointer) devicePtr).getPtr(), ((CudaPointer) staging.getPointer()).getPointer(), size,
+                    cuStream);
+            if (!async) {
+                cuStreamSynchronize(cuStream);
+                releaseStagingBuffer(staging);
+                return null;
+            }
+            cuStreamAddCallback(cuStream, (stream, status, data) -> releaseStagingBufferFromCallback(staging), null, 0);
+            CUevent e = new CUevent();
+            cuEventCreate(e, jcuda.driver.CUevent_flags.CU_EVENT_BLOCKING_SYNC);
+            cuEventRecord(e, cuStream);
+            return new CudaEvent(e);
+        }
+
+        // Asynchronous writes require page-pinned memory, which pageable host data
+        // does not have. So, instead, we synchronize on the stream, and copy synchronously.
 
         if (! async) {
             cuStreamSynchronize(cuStream);
@@ -233,6 +396,14 @@ public class CudaDevice extends Device {
     @Override
     public DeviceEvent enqueueReadBuffer(CommandStream q, boolean async, DeviceEvent[] waitEvents, long size, Pointer hostPtr,
             Pointer devicePtr) {
+        boolean hostDirect = !((CudaPointer) hostPtr).isHostArray();
+        TransferPath path = getTransferPlanner().choose(Argument.Direction.OUT, size, hostDirect, async);
+        return enqueueReadBuffer(path, q, async, waitEvents, size, hostPtr, devicePtr);
+    }
+
+    @Override
+    protected DeviceEvent enqueueReadBuffer(TransferPath path, CommandStream q, boolean async, DeviceEvent[] waitEvents,
+            long size, Pointer hostPtr, Pointer devicePtr) {
         cuCtxSetCurrent(ctxt);
         CUstream cuStream = ((CudaCommandStream) q).getQueue();
         // insert waits for the wait events
@@ -242,9 +413,19 @@ public class CudaDevice extends Device {
             }
         }
 
-        // Asynchronous writes require page-pinned memory, which we don't have. So, instead, we
-        // synchronize on the stream, and copy synchronously.
-        // TODO: investigate!
+        if (path == TransferPath.PINNED) {
+            // reads through a staging buffer are always synchronous
+            StagingBuffer staging = acquireStagingBuffer(size);
+            cuMemcpyDtoHAsync(((CudaPointer) staging.getPointer()).getPointer(), ((CudaPointer) devicePtr).getPtr(), size,
+                    cuStream);
+            cuStreamSynchronize(cuStream);
+            staging.copyOut(((CudaPointer) hostPtr).getHost(), size);
+            releaseStagingBuffer(staging);
+            return null;
+        }
+
+        // Asynchronous reads require page-pinned memory, which pageable host data
+        // does not have. So, instead, we synchronize on the stream, and copy synchronously.
 
         if (! async) {
             cuStreamSynchronize(cuStream);
@@ -1,8 +1,12 @@
 package ibis.cashmere.constellation.deviceImpl.jcuda;
 
+import static jcuda.driver.JCudaDriver.cuCtxSetCurrent;
 import static jcuda.driver.JCudaDriver.cuEventCreate;
+import static jcuda.driver.JCudaDriver.cuEventDestroy;
+import static jcuda.driver.JCudaDriver.cuEventElapsedTime;
 import static jcuda.driver.JCudaDriver.cuEventRecord;
 import static jcuda.driver.JCudaDriver.cuLaunchKernel;
+import static jcuda.driver.JCudaDriver.cuOccupancyMaxPotentialBlockSize;
 import static jcuda.driver.JCudaDriver.cuStreamWaitEvent;
 
 import java.util.ArrayList;
@@ -21,6 +25,8 @@ public class CudaKernelLaunch extends KernelLaunch {
 
     private CUfunction kernel;
     private List<Pointer> args = new ArrayList<Pointer>();
+    // recorded before the kernel, to time the launch
+    private CUevent startEvent;
 
     // A CudaKernelLaunch can only be created from within the package
     CudaKernelLaunch(String kernelName, String threadName, Device device) {
@@ -31,7 +37,8 @@ public class CudaKernelLaunch extends KernelLaunch {
     @Override
     public void launch(int gridX, int gridY, int gridZ, int blockX, int blockY, int blockZ, boolean synchronous) {
 
-        device.launched();
+        startExecution();
+        setProblemSize(gridX, gridY, gridZ);
 
         // Create argument array
         final Pointer[] params = args.toArray(new Pointer[args.size()]);
@@ -42,6 +49,10 @@ public class CudaKernelLaunch extends KernelLaunch {
             cuStreamWaitEvent(cuStream, ((CudaEvent) writeBufferEvents.get(i)).getEvent(), 0);
         }
 
+        startEvent = new CUevent();
+        cuEventCreate(startEvent, jcuda.driver.CUevent_flags.CU_EVENT_BLOCKING_SYNC);
+        cuEventRecord(startEvent, cuStream);
+
         cuLaunchKernel(kernel, gridX/blockX, gridY/blockY, gridZ/blockZ, blockX, blockY, blockZ, 0, cuStream, Pointer.to(params), null);
 
         // create an execute event.
@@ -53,14 +64,45 @@ public class CudaKernelLaunch extends KernelLaunch {
         DeviceEvent evnt = new CudaEvent(execEvent);
         executeEvents.add(evnt);
         registerExecuteEventToDevice(evnt);
+        completeExecution(evnt);
 
         launched = true;
-        if (synchronous) {
+        if (synchronous && !inGraph()) {
             finish();
         }
         registerWithThread();
     }
 
+    @Override
+    protected int[] getBlockSizeLimits() {
+        int[] minGridSize = new int[1];
+        int[] blockSize = new int[1];
+        cuCtxSetCurrent(((CudaDevice) device).getContext());
+        cuOccupancyMaxPotentialBlockSize(minGridSize, blockSize, kernel, null, 0, 0);
+        // the block size with the highest occupancy, the warp size, and the maximum block dimensions of CUDA devices
+        return new int[] { blockSize[0], 32, 1024, 1024, 64 };
+    }
+
+    @Override
+    protected double getExecutionTime() {
+        if (startEvent == null || executeEvents.size() != 1) {
+            return -1.0;
+        }
+        float[] milliseconds = new float[1];
+        cuEventElapsedTime(milliseconds, startEvent, ((CudaEvent) executeEvents.get(0)).getEvent());
+        return milliseconds[0] / 1e3;
+    }
+
+    @Override
+    protected void clean() {
+        // the start event is used to time the launch while it is cleaned
+        super.clean();
+        if (startEvent != null) {
+            cuEventDestroy(startEvent);
+            startEvent = null;
+        }
+    }
+
     @Override
     protected void setArgument(int size, Argument arg) {
         logger.debug("args(" + args.size() + " = " + ((CudaPointer) arg.getPointer()).cuPointer);
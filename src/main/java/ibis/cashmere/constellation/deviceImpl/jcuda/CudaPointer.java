@@ -10,27 +10,36 @@ public class CudaPointer implements Pointer {
     final jcuda.Pointer cuPointer;
     private CUdeviceptr ptr;
 
+    // the host data this pointer refers to, if any
+    private final Object host;
+
     public CudaPointer(byte[] a) {
+        host = a;
         cuPointer = jcuda.Pointer.to(a);
     }
 
     public CudaPointer(int[] a) {
+        host = a;
         cuPointer = jcuda.Pointer.to(a);
     }
 
     public CudaPointer(float[] a) {
+        host = a;
         cuPointer = jcuda.Pointer.to(a);
     }
 
     public CudaPointer(double[] a) {
+        host = a;
         cuPointer = jcuda.Pointer.to(a);
     }
 
     public CudaPointer(java.nio.Buffer b) {
+        host = b;
         cuPointer = jcuda.Pointer.to(b);
     }
 
     CudaPointer(CUdeviceptr ptr) {
+        host = null;
         this.ptr = ptr;
         cuPointer = jcuda.Pointer.to(ptr);
     }
@@ -43,6 +52,14 @@ public class CudaPointer implements Pointer {
         return cuPointer;
     }
 
+    Object getHost() {
+        return host;
+    }
+
+    boolean isHostArray() {
+        return host != null && host.getClass().isArray();
+    }
+
     @Override
     public boolean clean() {
         if (ptr != null) {
@@ -0,0 +1,44 @@
+package ibis.cashmere.constellation.deviceImpl.jcuda;
+
+import static jcuda.driver.JCudaDriver.cuCtxSetCurrent;
+import static jcuda.driver.JCudaDriver.cuMemAllocHost;
+import static jcuda.driver.JCudaDriver.cuMemFreeHost;
+
+import ibis.cashmere.constellation.Pointer;
+import ibis.cashmere.constellation.StagingBuffer;
+import jcuda.driver.CUcontext;
+
+/*
+ * Page-locked host memory for CUDA, allocated with cuMemAllocHost.
+ */
+class CudaStagingBuffer extends StagingBuffer {
+
+    private final CUcontext context;
+    private final jcuda.Pointer hostMemory;
+    private final CudaPointer pointer;
+
+    private CudaStagingBuffer(CUcontext context, jcuda.Pointer hostMemory, long size) {
+        super(hostMemory.getByteBuffer(0, size));
+        this.context = context;
+        this.hostMemory = hostMemory;
+        this.pointer = new CudaPointer(getByteBuffer());
+    }
+
+    static CudaStagingBuffer allocate(CUcontext context, long size) {
+        cuCtxSetCurrent(context);
+        jcuda.Pointer hostMemory = new jcuda.Pointer();
+        cuMemAllocHost(hostMemory, size);
+        return new CudaStagingBuffer(context, hostMemory, size);
+    }
+
+    @Override
+    public Pointer getPointer() {
+        return pointer;
+    }
+
+    @Override
+    protected void free() {
+        cuCtxSetCurrent(context);
+        cuMemFreeHost(hostMemory);
+    }
+}
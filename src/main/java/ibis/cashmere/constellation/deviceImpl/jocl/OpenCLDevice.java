@@ -1,9 +1,20 @@
 package ibis.cashmere.constellation.deviceImpl.jocl;
 
+import static org.jocl.CL.CL_COMPLETE;
 import static org.jocl.CL.CL_CONTEXT_PLATFORM;
+import static org.jocl.CL.CL_DEVICE_MAX_WORK_ITEM_SIZES;
+import static org.jocl.CL.CL_DEVICE_NAME;
+import static org.jocl.CL.CL_DEVICE_VENDOR;
+import static org.jocl.CL.CL_DRIVER_VERSION;
 import static org.jocl.CL.CL_FALSE;
+import static org.jocl.CL.CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE;
+import static org.jocl.CL.CL_KERNEL_WORK_GROUP_SIZE;
+import static org.jocl.CL.CL_MAP_READ;
+import static org.jocl.CL.CL_MAP_WRITE_INVALIDATE_REGION;
 import static org.jocl.CL.CL_MEM_READ_WRITE;
 import static org.jocl.CL.CL_PROFILING_COMMAND_QUEUED;
+import static org.jocl.CL.CL_PROGRAM_BINARIES;
+import static org.jocl.CL.CL_PROGRAM_BINARY_SIZES;
 import static org.jocl.CL.CL_PROGRAM_BUILD_LOG;
 import static org.jocl.CL.CL_QUEUE_PROFILING_ENABLE;
 import static org.jocl.CL.CL_QUEUE_PROPERTIES;
@@ -12,20 +23,42 @@ import static org.jocl.CL.clBuildProgram;
 import static org.jocl.CL.clCreateBuffer;
 import static org.jocl.CL.clCreateCommandQueueWithProperties;
 import static org.jocl.CL.clCreateContext;
+import static org.jocl.CL.clCreateKernel;
 import static org.jocl.CL.clCreateKernelsInProgram;
+import static org.jocl.CL.clCreateProgramWithBinary;
 import static org.jocl.CL.clCreateProgramWithSource;
+import static org.jocl.CL.clEnqueueBarrierWithWaitList;
+import static org.jocl.CL.clEnqueueMapBuffer;
+import static org.jocl.CL.clEnqueueMarkerWithWaitList;
 import static org.jocl.CL.clEnqueueReadBuffer;
+import static org.jocl.CL.clEnqueueUnmapMemObject;
 import static org.jocl.CL.clEnqueueWriteBuffer;
+import static org.jocl.CL.clFinish;
+import static org.jocl.CL.clGetDeviceInfo;
 import static org.jocl.CL.clGetEventProfilingInfo;
+import static org.jocl.CL.clGetKernelWorkGroupInfo;
 import static org.jocl.CL.clGetProgramBuildInfo;
+import static org.jocl.CL.clGetProgramInfo;
+import static org.jocl.CL.clReleaseKernel;
 import static org.jocl.CL.clReleaseMemObject;
+import static org.jocl.CL.clReleaseProgram;
+import static org.jocl.CL.clSetEventCallback;
 import static org.jocl.CL.clWaitForEvents;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.jocl.CL;
 import org.jocl.CLException;
@@ -48,6 +81,8 @@ import ibis.cashmere.constellation.Device;
 import ibis.cashmere.constellation.DeviceEvent;
 import ibis.cashmere.constellation.KernelLaunch;
 import ibis.cashmere.constellation.Pointer;
+import ibis.cashmere.constellation.StagingBuffer;
+import ibis.cashmere.constellation.TransferPath;
 import ibis.util.ThreadPool;
 
 public class OpenCLDevice extends Device {
@@ -55,21 +90,36 @@ public class OpenCLDevice extends Device {
     // To compare against ...
     private static cl_event null_event = new cl_event();
 
+    private static final String BUILD_OPTIONS = "";
+    // a kernel declaration, with optional attributes such as __attribute__((reqd_work_group_size(64, 1, 1)))
+    private static final String ATTRIBUTES = "(?:__attribute__\\s*\\(\\([^;{]*?\\)\\)\\s*)*";
+    private static final Pattern KERNEL_PATTERN = Pattern.compile("\\b(?:__)?kernel\\s+" + ATTRIBUTES + "void\\s+" + ATTRIBUTES
+            + "(\\w+)\\s*\\(");
+
     private final cl_device_id deviceID;
     private final cl_context context;
+    private final cl_queue_properties queueProperties;
 
     // the programs compiled for this Device
-    private Map<String, cl_program> kernels = new HashMap<String, cl_program>();
+    private Map<String, cl_program> kernels = new ConcurrentHashMap<String, cl_program>();
+    // per kernel name, the cl_kernel objects that are not in use by a launch
+    private Map<String, Queue<cl_kernel>> kernelPools = new ConcurrentHashMap<String, Queue<cl_kernel>>();
+    // the number of cl_kernel objects a pool retains, by default the number of threads that can launch concurrently
+    private final int kernelPoolSize;
+    // per kernel name, the limits of the block size, see KernelLaunch.getBlockSizeLimits
+    private Map<String, int[]> blockSizeLimits = new ConcurrentHashMap<String, int[]>();
 
     public OpenCLDevice(cl_device_id device, cl_platform_id platform, Cashmere cashmere) {
         super(cashmere, OpenCLInfo.getDeviceInfo(device));
         this.deviceID = device;
+        this.kernelPoolSize = getProperties().getIntProperty("cashmere.kernelPoolSize",
+                Runtime.getRuntime().availableProcessors());
 
         // initialize the context properties
         cl_context_properties contextProperties = new cl_context_properties();
         contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
 
-        cl_queue_properties queueProperties = new cl_queue_properties();
+        queueProperties = new cl_queue_properties();
         queueProperties.addProperty(CL_QUEUE_PROPERTIES, CL_QUEUE_PROFILING_ENABLE);
 
         // create a context for the device
@@ -81,14 +131,109 @@ public class OpenCLDevice extends Device {
     }
 
     @Override
-    public void addKernel(String kernelSource, String filename) {
+    protected String getCompilerIdentity() {
+        // the device class of info is shared by different GPUs, so the identity names the physical device
+        return info.getName() + "/" + OpenCLInfo.getInfo(deviceID, CL_DEVICE_VENDOR, CL::clGetDeviceInfo) + "/"
+                + OpenCLInfo.getInfo(deviceID, CL_DEVICE_NAME, CL::clGetDeviceInfo) + "/"
+                + OpenCLInfo.getInfo(deviceID, CL_DRIVER_VERSION, CL::clGetDeviceInfo) + "/" + BUILD_OPTIONS;
+    }
+
+    @Override
+    protected byte[] buildKernel(String kernelSource, String filename) {
         cl_program program = clCreateProgramWithSource(context, 1, new String[] { kernelSource },
                 new long[] { kernelSource.length() }, null);
 
-        clBuildProgram(program, 0, null, null, null, null);
+        buildProgram(program);
         // clBuildProgram(program, 0, null,
         // "-cl-nv-verbose -cl-nv-maxrregcount=20", null, null);
-        // assuming there is only one kernel for now.
+        registerProgram(program);
+        return getBinary(program);
+    }
+
+    @Override
+    protected void loadKernel(byte[] binary, String kernelSource, String filename) {
+        int[] binaryStatus = new int[1];
+        cl_program program = clCreateProgramWithBinary(context, 1, new cl_device_id[] { deviceID }, new long[] { binary.length },
+                new byte[][] { binary }, binaryStatus, null);
+        if (binaryStatus[0] != CL.CL_SUCCESS) {
+            clReleaseProgram(program);
+            throw new CLException("Invalid binary for " + filename, binaryStatus[0]);
+        }
+        buildProgram(program);
+        registerProgram(program);
+    }
+
+    @Override
+    protected List<String> getKernelNames(String kernelSource, String filename) {
+        Set<String> names = new LinkedHashSet<String>();
+        Matcher matcher = KERNEL_PATTERN.matcher(stripComments(kernelSource));
+        while (matcher.find()) {
+            names.add(matcher.group(1));
+        }
+        return new ArrayList<String>(names);
+    }
+
+    @Override
+    protected String renameKernel(String kernelSource, String name, String newName) {
+        Pattern declaration = Pattern.compile("(\\b(?:__)?kernel\\s+" + ATTRIBUTES + "void\\s+" + ATTRIBUTES + ")"
+                + Pattern.quote(name) + "(\\s*\\()");
+        return declaration.matcher(kernelSource).replaceAll("$1" + Matcher.quoteReplacement(newName) + "$2");
+    }
+
+    @Override
+    protected void warmUpKernels() {
+        // one cl_kernel per kernel in the pool, which also finalizes the program for the device
+        for (String name : kernels.keySet()) {
+            returnKernel(name, checkoutKernel(name));
+        }
+    }
+
+    @Override
+    protected void whenComplete(CommandStream q, DeviceEvent event, Runnable action) {
+        if (event == null) {
+            action.run();
+        } else {
+            clSetEventCallback(((OpenCLEvent) event).getCLEvent(), CL_COMPLETE, (e, status, data) -> action.run(), null);
+        }
+    }
+
+    @Override
+    protected CommandStream createExecuteQueue() {
+        return new OpenCLCommandStream(clCreateCommandQueueWithProperties(context, deviceID, queueProperties, null));
+    }
+
+    @Override
+    protected DeviceEvent recordEvent(CommandStream q) {
+        cl_event event = new cl_event();
+        clEnqueueMarkerWithWaitList(((OpenCLCommandStream) q).getQueue(), 0, null, event);
+        return new OpenCLEvent(event);
+    }
+
+    @Override
+    protected void waitForEvent(CommandStream q, DeviceEvent event) {
+        // the queues are in-order, so a barrier delays all later commands on q
+        cl_event[] waitList = new cl_event[] { ((OpenCLEvent) event).getCLEvent() };
+        clEnqueueBarrierWithWaitList(((OpenCLCommandStream) q).getQueue(), 1, waitList, null);
+    }
+
+    @Override
+    protected void removeKernel(String name) {
+        cl_program program = kernels.remove(name);
+        Queue<cl_kernel> pool = kernelPools.remove(name);
+        blockSizeLimits.remove(name);
+        if (pool != null) {
+            for (cl_kernel kernel : pool) {
+                clReleaseKernel(kernel);
+            }
+        }
+        // kernels that are still in use keep the program alive
+        if (program != null && !kernels.containsValue(program)) {
+            clReleaseProgram(program);
+        }
+    }
+
+    private void buildProgram(cl_program program) {
+        clBuildProgram(program, 0, null, BUILD_OPTIONS, null, null);
 
         long size[] = new long[1];
         clGetProgramBuildInfo(program, deviceID, CL_PROGRAM_BUILD_LOG, 0, null, size);
@@ -99,17 +244,34 @@ public class OpenCLDevice extends Device {
         if (log.length() > 0) {
             System.out.println(log);
         }
+    }
 
-        cl_kernel[] kernelArray = new cl_kernel[1];
-        clCreateKernelsInProgram(program, 1, kernelArray, null);
-        cl_kernel kernel = kernelArray[0];
+    private void registerProgram(cl_program program) {
+        // every kernel in the program is registered under its own name
+        int[] nrKernels = new int[1];
+        clCreateKernelsInProgram(program, 0, null, nrKernels);
+        cl_kernel[] kernelArray = new cl_kernel[nrKernels[0]];
+        clCreateKernelsInProgram(program, kernelArray.length, kernelArray, null);
 
-        String nameKernel = OpenCLInfo.getName(kernel);
-        this.kernels.put(nameKernel, program);
+        for (cl_kernel kernel : kernelArray) {
+            String nameKernel = OpenCLInfo.getName(kernel);
+            clReleaseKernel(kernel);
+            this.kernels.put(nameKernel, program);
 
-        // writeBinary(program, nameKernel, info.name);
+            logger.info("Registered kernel " + nameKernel + " on device " + info.getNickName());
+        }
+    }
 
-        logger.info("Registered kernel " + nameKernel + " on device " + info.getNickName());
+    private byte[] getBinary(cl_program program) {
+        long[] sizes = new long[1];
+        clGetProgramInfo(program, CL_PROGRAM_BINARY_SIZES, Sizeof.size_t, org.jocl.Pointer.to(sizes), null);
+        if (sizes[0] == 0) {
+            return null;
+        }
+        byte[] binary = new byte[(int) sizes[0]];
+        org.jocl.Pointer binaries = org.jocl.Pointer.to(new org.jocl.Pointer[] { org.jocl.Pointer.to(binary) });
+        clGetProgramInfo(program, CL_PROGRAM_BINARIES, Sizeof.POINTER, binaries, null);
+        return binary;
     }
 
     public cl_context getContext() {
@@ -154,9 +316,28 @@ public class OpenCLDevice extends Device {
         return new OpenCLPointer(clmem);
     }
 
+    @Override
+    protected Set<TransferPath> getTransferPaths() {
+        return EnumSet.allOf(TransferPath.class);
+    }
+
+    @Override
+    protected StagingBuffer allocateStagingBuffer(long size) {
+        return withAllocationError(
+                () -> OpenCLStagingBuffer.allocate(context, ((OpenCLCommandStream) getWriteQueue()).getQueue(), size));
+    }
+
     @Override
     public DeviceEvent writeNoCreateBuffer(CommandStream stream, DeviceEvent[] waitEvents, boolean async, long size, Pointer hostPtr,
             Pointer devicePtr) {
+        TransferPath path = getTransferPlanner().choose(Argument.Direction.IN, size, !((OpenCLPointer) hostPtr).isHostArray(),
+                async);
+        return writeNoCreateBuffer(path, stream, waitEvents, async, size, hostPtr, devicePtr);
+    }
+
+    @Override
+    protected DeviceEvent writeNoCreateBuffer(TransferPath path, CommandStream stream, DeviceEvent[] waitEvents, boolean async,
+            long size, Pointer hostPtr, Pointer devicePtr) {
         final int nEvents = waitEvents != null ? waitEvents.length : 0;
         final cl_event[] wEvents = nEvents == 0 ? null : new cl_event[nEvents];
         if (nEvents > 0) {
@@ -182,8 +363,28 @@ public class OpenCLDevice extends Device {
         cl_mem memObject = ((OpenCLPointer) devicePtr).getCLMem();
 
         cl_event event = async ? new cl_event() : null;
-        withAllocationError(() -> clEnqueueWriteBuffer(q, memObject, async ? CL_FALSE : CL_TRUE, 0, size, ((OpenCLPointer) hostPtr).getPointer(),
-                nEvents, (nEvents == 0) ? null : wEvents, event));
+        Object host = ((OpenCLPointer) hostPtr).getHost();
+        switch (path) {
+        case PINNED:
+            StagingBuffer staging = acquireStagingBuffer(size);
+            staging.copyIn(host, size);
+            withAllocationError(() -> clEnqueueWriteBuffer(q, memObject, async ? CL_FALSE : CL_TRUE, 0, size,
+                    ((OpenCLPointer) staging.getPointer()).getPointer(), nEvents, (nEvents == 0) ? null : wEvents, event));
+            releaseStagingBufferAfter(event, staging);
+            break;
+        case MAPPED:
+            ByteBuffer mapped = withAllocationError(() -> clEnqueueMapBuffer(q, memObject, CL_TRUE,
+                    CL_MAP_WRITE_INVALIDATE_REGION, 0, size, nEvents, (nEvents == 0) ? null : wEvents, null, null));
+            StagingBuffer.copyIn(host, mapped, size);
+            clEnqueueUnmapMemObject(q, memObject, mapped, 0, null, event);
+            if (!async) {
+                clFinish(q);
+            }
+            break;
+        default:
+            withAllocationError(() -> clEnqueueWriteBuffer(q, memObject, async ? CL_FALSE : CL_TRUE, 0, size,
+                    ((OpenCLPointer) hostPtr).getPointer(), nEvents, (nEvents == 0) ? null : wEvents, event));
+        }
 
         if (event == null) {
             return null;
@@ -203,6 +404,14 @@ public class OpenCLDevice extends Device {
     @Override
     public DeviceEvent enqueueReadBuffer(CommandStream stream, boolean asynch, DeviceEvent[] waitEvents, long size,
             Pointer hostPtr, Pointer devicePtr) {
+        TransferPath path = getTransferPlanner().choose(Argument.Direction.OUT, size, !((OpenCLPointer) hostPtr).isHostArray(),
+                asynch);
+        return enqueueReadBuffer(path, stream, asynch, waitEvents, size, hostPtr, devicePtr);
+    }
+
+    @Override
+    protected DeviceEvent enqueueReadBuffer(TransferPath path, CommandStream stream, boolean asynch, DeviceEvent[] waitEvents,
+            long size, Pointer hostPtr, Pointer devicePtr) {
         cl_event event = new cl_event();
         final int nEvents = waitEvents != null ? waitEvents.length : 0;
         final cl_event[] wEvents = new cl_event[nEvents];
@@ -211,8 +420,26 @@ public class OpenCLDevice extends Device {
         }
         cl_command_queue q = ((OpenCLCommandStream) stream).getQueue();
         cl_mem memObject = ((OpenCLPointer) devicePtr).getCLMem();
-        withAllocationError(() -> clEnqueueReadBuffer(q, memObject, asynch ? CL_FALSE : CL_TRUE, 0, size,
-                ((OpenCLPointer) hostPtr).getPointer(), nEvents, (nEvents == 0) ? null : wEvents, event));
+        Object host = ((OpenCLPointer) hostPtr).getHost();
+        switch (path) {
+        case PINNED:
+            // reads through a staging buffer are always synchronous
+            StagingBuffer staging = acquireStagingBuffer(size);
+            withAllocationError(() -> clEnqueueReadBuffer(q, memObject, CL_TRUE, 0, size,
+                    ((OpenCLPointer) staging.getPointer()).getPointer(), nEvents, (nEvents == 0) ? null : wEvents, event));
+            staging.copyOut(host, size);
+            releaseStagingBuffer(staging);
+            break;
+        case MAPPED:
+            ByteBuffer mapped = withAllocationError(() -> clEnqueueMapBuffer(q, memObject, CL_TRUE, CL_MAP_READ, 0, size, nEvents,
+                    (nEvents == 0) ? null : wEvents, event, null));
+            StagingBuffer.copyOut(mapped, host, size);
+            clEnqueueUnmapMemObject(q, memObject, mapped, 0, null, null);
+            break;
+        default:
+            withAllocationError(() -> clEnqueueReadBuffer(q, memObject, asynch ? CL_FALSE : CL_TRUE, 0, size,
+                    ((OpenCLPointer) hostPtr).getPointer(), nEvents, (nEvents == 0) ? null : wEvents, event));
+        }
         if (logger.isDebugEnabled()) {
             logger.debug("performing a readBuffer with new event: {}, depends on {} (retained)", event, wEvents);
         }
@@ -225,6 +452,14 @@ public class OpenCLDevice extends Device {
         return new OpenCLEvent(event);
     }
 
+    private void releaseStagingBufferAfter(cl_event event, StagingBuffer staging) {
+        if (event == null) {
+            releaseStagingBuffer(staging);
+        } else {
+            clSetEventCallback(event, CL_COMPLETE, (e, status, data) -> releaseStagingBufferFromCallback(staging), null);
+        }
+    }
+
     @Override
     public void waitEvents(DeviceEvent[] waitEvents) {
         final int nEvents = waitEvents != null ? waitEvents.length : 0;
@@ -254,27 +489,55 @@ public class OpenCLDevice extends Device {
         setOffsetHostDevice(startHost - value[0]);
     }
 
-    cl_kernel getKernel() {
-        Collection<cl_program> programCollection = kernels.values();
-        cl_program[] programs = new cl_program[programCollection.size()];
-        programs = programCollection.toArray(programs);
-        cl_program program = programs[0];
-        return getKernelProgram(program);
+    /*
+     * A launch checks out a cl_kernel for setting its arguments and returns it as soon as it is enqueued, because
+     * OpenCL captures the argument values at that time. This way, the cl_kernel objects are reused by later launches
+     * instead of being created and released for each launch. A pool retains at most cashmere.kernelPoolSize kernels.
+     */
+    cl_kernel checkoutKernel(String name) {
+        cl_kernel kernel = getKernelPool(name).poll();
+        if (kernel == null) {
+            String kernelName = getKernelName(name);
+            kernel = clCreateKernel(kernels.get(kernelName), kernelName, null);
+        }
+        return kernel;
     }
 
-    cl_kernel getKernel(String name) {
-        if (name == null) {
-            return getKernel();
+    void returnKernel(String name, cl_kernel kernel) {
+        Queue<cl_kernel> pool = kernelPools.get(getKernelName(name));
+        if (pool == null || pool.size() >= kernelPoolSize) {
+            // the kernel was removed while this launch was using it, or a burst of launches left more kernels than retained
+            clReleaseKernel(kernel);
+        } else {
+            pool.offer(kernel);
         }
-        cl_program program = kernels.get(name);
-        return getKernelProgram(program);
     }
 
-    private cl_kernel getKernelProgram(cl_program program) {
-        cl_kernel[] kernelArray = new cl_kernel[1];
-        clCreateKernelsInProgram(program, 1, kernelArray, null);
-        cl_kernel kernel = kernelArray[0];
-        return kernel;
+    int[] getBlockSizeLimits(String name, cl_kernel kernel) {
+        return blockSizeLimits.computeIfAbsent(getKernelName(name), n -> {
+            long[] value = new long[1];
+            clGetKernelWorkGroupInfo(kernel, deviceID, CL_KERNEL_WORK_GROUP_SIZE, Sizeof.size_t, org.jocl.Pointer.to(value),
+                    null);
+            int maxThreads = (int) value[0];
+            clGetKernelWorkGroupInfo(kernel, deviceID, CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE, Sizeof.size_t,
+                    org.jocl.Pointer.to(value), null);
+            int multiple = (int) value[0];
+            long[] sizes = new long[3];
+            clGetDeviceInfo(deviceID, CL_DEVICE_MAX_WORK_ITEM_SIZES, 3 * Sizeof.size_t, org.jocl.Pointer.to(sizes), null);
+            return new int[] { maxThreads, multiple, (int) sizes[0], (int) sizes[1], (int) sizes[2] };
+        });
+    }
+
+    private Queue<cl_kernel> getKernelPool(String name) {
+        return kernelPools.computeIfAbsent(getKernelName(name), n -> new ConcurrentLinkedQueue<cl_kernel>());
+    }
+
+    // the name null means the only registered kernel
+    private String getKernelName(String name) {
+        if (name == null) {
+            return kernels.keySet().iterator().next();
+        }
+        return name;
     }
 
     @Override
@@ -285,26 +548,4 @@ public class OpenCLDevice extends Device {
             return kernels.containsKey(name);
         }
     }
-
-    protected void writeBinary(cl_program program, String nameKernel, String nameDevice) {
-        // int nrDevices = 1;
-        // long[] sizes = new long[nrDevices];
-        // clGetProgramInfo(program, CL_PROGRAM_BINARY_SIZES, nrDevices * Sizeof.size_t, Pointer.to(sizes), null);
-        // byte[][] buffers = new byte[nrDevices][];
-        // Pointer[] pointers = new Pointer[nrDevices];
-        // for (int i = 0; i < nrDevices; i++) {
-        //     buffers[i] = new byte[(int) sizes[i] + 1];
-        //     pointers[i] = Pointer.to(buffers[i]);
-        // }
-        // Pointer p = Pointer.to(pointers);
-        // clGetProgramInfo(program, CL_PROGRAM_BINARIES, nrDevices * Sizeof.POINTER, p, null);
-        // String binary = new String(buffers[0], 0, buffers[0].length - 1).trim();
-        // try {
-        //     PrintStream out = new PrintStream(new File(nameDevice + "_" + nameKernel + ".ptx"));
-        //     out.println(binary);
-        //     out.close();
-        // } catch (IOException e) {
-        //     System.err.println(e.getMessage());
-        // }
-    }
 }
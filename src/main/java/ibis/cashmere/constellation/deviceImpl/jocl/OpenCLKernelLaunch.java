@@ -17,7 +17,6 @@
 package ibis.cashmere.constellation.deviceImpl.jocl;
 
 import static org.jocl.CL.clEnqueueNDRangeKernel;
-import static org.jocl.CL.clReleaseKernel;
 import static org.jocl.CL.clRetainEvent;
 import static org.jocl.CL.clSetKernelArg;
 
@@ -43,7 +42,7 @@ public class OpenCLKernelLaunch extends KernelLaunch {
     // A OpenCLKernelLaunch can only be created from within the package
     OpenCLKernelLaunch(String kernelName, String threadName, Device device) {
         super(kernelName, threadName, device);
-        this.kernel = ((OpenCLDevice) device).getKernel(kernelName);
+        this.kernel = ((OpenCLDevice) device).checkoutKernel(kernelName);
     }
 
     /*
@@ -73,7 +72,8 @@ public class OpenCLKernelLaunch extends KernelLaunch {
         long global_work_size[] = new long[] { gridX, gridY, gridZ };
         long local_work_size[] = new long[] { blockX, blockY, blockZ };
 
-        device.launched();
+        startExecution();
+        setProblemSize(gridX, gridY, gridZ);
 
         final cl_event[] wbeArray = new cl_event[writeBufferEvents.size()];
         for (int i = 0; i < writeBufferEvents.size(); i++) {
@@ -84,6 +84,8 @@ public class OpenCLKernelLaunch extends KernelLaunch {
         cl_event event = new cl_event();
         device.withAllocationError(() -> clEnqueueNDRangeKernel(((OpenCLCommandStream) executeQueue).getQueue(), kernel, 3, null,
                 global_work_size, local_work_size, wbeArray.length, wbeArray.length == 0 ? null : wbeArray, event));
+        // the arguments are captured by the enqueue, so the kernel can be used by other launches now
+        returnKernel();
         if (logger.isDebugEnabled()) {
             logger.debug(
                     "Launched " + name + ": " + event + " (new event) depends on : " + Arrays.toString(wbeArray) + "(retained)");
@@ -93,9 +95,10 @@ public class OpenCLKernelLaunch extends KernelLaunch {
         DeviceEvent evnt = new OpenCLEvent(event);
         executeEvents.add(evnt);
         registerExecuteEventToDevice(evnt);
+        completeExecution(evnt);
 
         launched = true;
-        if (synchronous) {
+        if (synchronous && !inGraph()) {
             finish();
         }
         registerWithThread();
@@ -103,11 +106,22 @@ public class OpenCLKernelLaunch extends KernelLaunch {
 
     @Override
     protected void clean() {
-        clReleaseKernel(kernel);
-        kernel = null;
+        returnKernel();
         super.clean();
     }
 
+    private void returnKernel() {
+        if (kernel != null) {
+            ((OpenCLDevice) device).returnKernel(name, kernel);
+            kernel = null;
+        }
+    }
+
+    @Override
+    protected int[] getBlockSizeLimits() {
+        return ((OpenCLDevice) device).getBlockSizeLimits(name, kernel);
+    }
+
     @Override
     protected void setArgument(int size, Argument arg) {
         if (logger.isDebugEnabled()) {
@@ -14,29 +14,38 @@ public class OpenCLPointer implements Pointer {
 
     private final org.jocl.Pointer clPointer;
     private org.jocl.cl_mem clmem = null;
+
+    // the host data this pointer refers to, if any
+    private final Object host;
     private static Logger logger = LoggerFactory.getLogger(OpenCLPointer.class);
 
     public OpenCLPointer(byte[] a) {
+        host = a;
         clPointer = org.jocl.Pointer.to(a);
     }
 
     public OpenCLPointer(int[] a) {
+        host = a;
         clPointer = org.jocl.Pointer.to(a);
     }
 
     public OpenCLPointer(float[] a) {
+        host = a;
         clPointer = org.jocl.Pointer.to(a);
     }
 
     public OpenCLPointer(double[] a) {
+        host = a;
         clPointer = org.jocl.Pointer.to(a);
     }
 
     public OpenCLPointer(Buffer b) {
+        host = b;
         clPointer = org.jocl.Pointer.to(b);
     }
 
     OpenCLPointer(org.jocl.cl_mem mem) {
+        host = null;
         clmem = mem;
         clPointer = org.jocl.Pointer.to(clmem);
     }
@@ -66,4 +75,12 @@ public class OpenCLPointer implements Pointer {
     public org.jocl.Pointer getPointer() {
         return clPointer;
     }
+
+    Object getHost() {
+        return host;
+    }
+
+    boolean isHostArray() {
+        return host != null && host.getClass().isArray();
+    }
 }
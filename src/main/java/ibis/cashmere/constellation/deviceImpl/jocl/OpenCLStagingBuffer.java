@@ -0,0 +1,59 @@
+package ibis.cashmere.constellation.deviceImpl.jocl;
+
+import static org.jocl.CL.CL_MAP_READ;
+import static org.jocl.CL.CL_MAP_WRITE;
+import static org.jocl.CL.CL_MEM_ALLOC_HOST_PTR;
+import static org.jocl.CL.CL_MEM_READ_WRITE;
+import static org.jocl.CL.CL_TRUE;
+import static org.jocl.CL.clCreateBuffer;
+import static org.jocl.CL.clEnqueueMapBuffer;
+import static org.jocl.CL.clEnqueueUnmapMemObject;
+import static org.jocl.CL.clFinish;
+import static org.jocl.CL.clReleaseMemObject;
+
+import java.nio.ByteBuffer;
+
+import org.jocl.cl_command_queue;
+import org.jocl.cl_context;
+import org.jocl.cl_mem;
+
+import ibis.cashmere.constellation.Pointer;
+import ibis.cashmere.constellation.StagingBuffer;
+
+/*
+ * Page-locked host memory for OpenCL.  OpenCL has no call to allocate page-locked
+ * memory, but most implementations return it when mapping a buffer that was
+ * created with CL_MEM_ALLOC_HOST_PTR.  The buffer stays mapped for its lifetime.
+ */
+class OpenCLStagingBuffer extends StagingBuffer {
+
+    private final cl_command_queue queue;
+    private final cl_mem mem;
+    private final OpenCLPointer pointer;
+
+    private OpenCLStagingBuffer(cl_command_queue queue, cl_mem mem, ByteBuffer byteBuffer) {
+        super(byteBuffer);
+        this.queue = queue;
+        this.mem = mem;
+        this.pointer = new OpenCLPointer(getByteBuffer());
+    }
+
+    static OpenCLStagingBuffer allocate(cl_context context, cl_command_queue queue, long size) {
+        cl_mem mem = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, size, null, null);
+        ByteBuffer byteBuffer = clEnqueueMapBuffer(queue, mem, CL_TRUE, CL_MAP_READ | CL_MAP_WRITE, 0, size, 0, null, null,
+                null);
+        return new OpenCLStagingBuffer(queue, mem, byteBuffer);
+    }
+
+    @Override
+    public Pointer getPointer() {
+        return pointer;
+    }
+
+    @Override
+    protected void free() {
+        clEnqueueUnmapMemObject(queue, mem, getByteBuffer(), 0, null, null);
+        clFinish(queue);
+        clReleaseMemObject(mem);
+    }
+}